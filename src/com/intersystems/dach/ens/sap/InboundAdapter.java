@@ -1,18 +1,37 @@
 package com.intersystems.dach.ens.sap;
 
+import java.io.IOException;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import com.intersystems.dach.ens.sap.testing.TestCase;
 import com.intersystems.dach.ens.sap.testing.TestRunner;
 import com.intersystems.dach.ens.sap.testing.TestCaseCollection;
+import com.intersystems.dach.ens.sap.utils.AdaptiveBatchSizer;
+import com.intersystems.dach.ens.sap.utils.IRISIngestPool;
+import com.intersystems.dach.ens.sap.utils.IRISSchemaStore;
+import com.intersystems.dach.ens.sap.utils.IRISStreamWriter;
+import com.intersystems.dach.ens.sap.utils.ImportDataAggregator;
+import com.intersystems.dach.ens.sap.utils.ImportDataQueue;
+import com.intersystems.dach.ens.sap.utils.ImportDataSpillStore;
+import com.intersystems.dach.ens.sap.utils.LatencyStatistics;
+import com.intersystems.dach.ens.sap.utils.PayloadBufferPool;
 import com.intersystems.dach.ens.sap.utils.IRISXSDSchemaImporter;
 import com.intersystems.dach.exceptions.FieldException;
 import com.intersystems.dach.exceptions.InitializeException;
 import com.intersystems.dach.exceptions.OnTaskException;
+import com.intersystems.dach.exceptions.ProcessingException;
+import com.intersystems.dach.exceptions.QueueFullException;
 import com.intersystems.dach.sap.SAPServer;
 import com.intersystems.dach.sap.SAPServerArgs;
 import com.intersystems.dach.sap.SAPImportData;
@@ -22,10 +41,12 @@ import com.intersystems.dach.sap.handlers.SAPServerExceptionHandler;
 import com.intersystems.dach.sap.handlers.SAPServerImportDataHandler;
 import com.intersystems.dach.sap.handlers.SAPServerStateHandler;
 import com.intersystems.dach.utils.TraceManager;
+import com.intersystems.dach.utils.TraceRingBuffer;
 import com.intersystems.enslib.pex.ClassMetadata; //intersystems-util-3.3.0 or newer
 import com.intersystems.enslib.pex.FieldMetadata; //intersystems-util-3.3.0 or newer
 import com.intersystems.gateway.GatewayContext;
 import com.intersystems.jdbc.IRIS;
+import com.intersystems.jdbc.IRISList;
 import com.intersystems.jdbc.IRISObject;
 import com.sap.conn.jco.ext.DestinationDataProvider;
 import com.sap.conn.jco.ext.ServerDataProvider;
@@ -51,7 +72,7 @@ public class InboundAdapter extends com.intersystems.enslib.pex.InboundAdapter
     @FieldMetadata(Category = "SAP Service", Description = "If enabled the service will return a JSON object instead of a XML object")
     public boolean UseJSON = false;
 
-    @FieldMetadata(Category = "SAP Service", IsRequired = true, Description = "REQUIRED<br>This is the timout for the SAP function handler. If the confirmation takes longer an AbapException exception is thrown.")
+    @FieldMetadata(Category = "SAP Service", IsRequired = true, Description = "REQUIRED<br>This is the timout for the SAP function handler. If the confirmation takes longer an AbapException exception is thrown. The message is then discarded and not processed anymore.")
     public Integer ConfirmationTimeoutSec = 10;
 
     @FieldMetadata(Category = "SAP Service", Description = "Send test messages for debugging and testing purposes.")
@@ -60,9 +81,99 @@ public class InboundAdapter extends com.intersystems.enslib.pex.InboundAdapter
     @FieldMetadata(Category = "SAP Service", Description = "If enabled the service will print all messages to the console. This is useful for debugging purposes.")
     public boolean EnableTracing = false;
 
-    @FieldMetadata(Category = "SAP Service", IsRequired = true, Description = "REQUIRED<br>The maximum number of messages that can be queued for processing. If the queue is full, the adapter will print a warning and increase the throughput.")
+    @FieldMetadata(Category = "SAP Service", Description = "A comma separated list of the traced categories: Server, Request, Transaction, Schema and Payload. Leave out Payload to trace the calls without their data. If left empty all categories are traced.")
+    public String TraceCategories = "";
+
+    @FieldMetadata(Category = "SAP Service", Description = "Info: Trace the main steps. Debug: Trace every step.")
+    public String TraceLevel = "Debug";
+
+    @FieldMetadata(Category = "SAP Service", Description = "Trace only every n-th call of a function, e.g. 'Z_ORDER=10,*=100' traces every 10th call of Z_ORDER and every 100th call of all other functions. If left empty all calls are traced.")
+    public String TraceSampleRates = "";
+
+    @FieldMetadata(Category = "SAP Service", IsRequired = true, Description = "REQUIRED<br>If more messages are queued for processing, the adapter will print a warning.")
     public int QueueWarningThreshold = 100;
 
+    @FieldMetadata(Category = "SAP Service", Description = "The maximum number of messages that can be queued for processing. If the queue is full, new calls are handled according to the QueueFullPolicy.")
+    public int MaxQueueSize = 1000;
+
+    @FieldMetadata(Category = "SAP Service", Description = "The maximum size in MB of the data of all messages that are queued for processing. If the queue is full, new calls are handled according to the QueueFullPolicy.")
+    public int MaxQueueSizeMB = 256;
+
+    @FieldMetadata(Category = "SAP Service", Description = "Block: A new call waits up to ConfirmationTimeoutSec for free space in the queue. Reject: A new call is rejected immediately. A call that can't be queued fails with the ABAP exception QUEUE_FULL, so SAP can repeat it.")
+    public String QueueFullPolicy = "Block";
+
+    @FieldMetadata(Category = "SAP Service", Description = "Weighted round robin between the functions, e.g. 'Z_ATP_CHECK=10,*=1' takes up to 10 messages of Z_ATP_CHECK for every message of any other function. The messages of a function always keep their order. If left empty all functions have the same weight.")
+    public String FunctionWeights = "";
+
+    @FieldMetadata(Category = "SAP Service", Description = "A comma separated list of functions whose messages are always processed before the messages of all other functions.")
+    public String PriorityFunctions = "";
+
+    @FieldMetadata(Category = "SAP Service", Description = "If set, the data of queued messages beyond SpillHeapMB is moved to memory-mapped files in this folder and read back when the messages are processed. If left empty all queued data is kept in memory.")
+    public String SpillPath = "";
+
+    @FieldMetadata(Category = "SAP Service", Description = "The maximum size in MB of the queued data that is kept in memory if a SpillPath is set.")
+    public int SpillHeapMB = 64;
+
+    @FieldMetadata(Category = "SAP Service", Description = "If the usage of the Java heap crosses this percentage, the data of all new messages is moved to the SpillPath. 0 disables the check.")
+    public int SpillMemoryThresholdPercent = 80;
+
+    @FieldMetadata(Category = "SAP Service", Description = "If enabled, the data of queued messages is kept as UTF-8 bytes in pooled buffers outside of the Java heap and passed to IRIS without converting it to a Java String.")
+    public boolean QueueOffHeap = false;
+
+    @FieldMetadata(Category = "SAP Service", Description = "If QueueOffHeap is enabled, the data of queued messages of at least this size in KB is compressed. 0 disables the compression.")
+    public int QueueCompressionThresholdKB = 0;
+
+    @FieldMetadata(Category = "SAP Service", Description = "A comma separated list of functions whose messages are combined into a single message. The combined message contains the collected documents in a JSON array or in a SAPBatch XML element. All calls of a batch are confirmed when the batch has been processed.")
+    public String AggregateFunctions = "";
+
+    @FieldMetadata(Category = "SAP Service", Description = "The time in milliseconds the messages of a function are collected before they are passed on as a batch.")
+    public int AggregateWindowMs = 1000;
+
+    @FieldMetadata(Category = "SAP Service", Description = "The maximum number of messages in a batch. A full batch is passed on at once.")
+    public int AggregateMaxMessages = 100;
+
+    @FieldMetadata(Category = "SAP Service", Description = "The maximum size in KB of the data of a batch. A full batch is passed on at once.")
+    public int AggregateMaxKB = 1024;
+
+    @FieldMetadata(Category = "SAP Service", Description = "The maximum number of messages that are processed in a single call. The batch size is reduced automatically if the processing takes too long.")
+    public int MaxBatchSize = 50;
+
+    @FieldMetadata(Category = "SAP Service", Description = "The maximum time in milliseconds a single call may spend processing a batch of messages.")
+    public int MaxBatchTimeMs = 200;
+
+    @FieldMetadata(Category = "SAP Service", Description = "If enabled, the messages of a call are passed to IRIS with a single gateway call that creates the SAPDataObjects and passes them to the business service. Otherwise every message is passed on with its own gateway calls.")
+    public boolean BatchHandOff = true;
+
+    @FieldMetadata(Category = "SAP Service", Description = "The data of messages of at least this size in KB is passed to IRIS in chunks and stored in the DataStream of the SAPDataObject instead of its Data. 0 passes all data as a single string.")
+    public int StreamThresholdKB = 1024;
+
+    @FieldMetadata(Category = "SAP Service", Description = "The interval in seconds in which the throughput and latency of each function is written to the log. 0 disables the summary. The statistics can also be read with the method GetStatistics() of the adapter.")
+    public int StatisticsIntervalSec = 300;
+
+    @FieldMetadata(Category = "SAP Service", Description = "The states of transactional RFC calls (tRFC/qRFC) are stored in this folder, so that repeated calls are not processed twice, even after a restart. If left empty the states are only kept in memory.")
+    public String TIDStorePath = "";
+
+    @FieldMetadata(Category = "SAP Service", Description = "If enabled, the data of transactional RFC calls (tRFC/qRFC) is written to a local journal in the TIDStorePath folder and the call is confirmed to SAP immediately. The journaled data is processed asynchronously and replayed after a restart if it has not been processed. Data whose processing failed is moved to the file <ProgrammID>.journal.failed in the same folder. Requires a TIDStorePath. Synchronous calls always wait for the processing.")
+    public boolean EarlyAcknowledgeTransactions = false;
+
+    @FieldMetadata(Category = "SAP Service", Description = "The number of threads that pass the messages to IRIS in parallel, each with its own connection. 0 passes the messages with the connection of the adapter. Requires an IngestTarget.")
+    public int IngestPoolSize = 0;
+
+    @FieldMetadata(Category = "SAP Service", Description = "The name of the business service the ingest pool passes the messages to. The business service must accept a SAPDataObject and must have a pool size of 0.")
+    public String IngestTarget = "";
+
+    @FieldMetadata(Category = "SAP Service", Description = "The host and superserver port of IRIS for the connections of the ingest pool, e.g. 'localhost:1972'. The namespace of the production is used.")
+    public String IngestServer = "localhost:1972";
+
+    @FieldMetadata(Category = "SAP Service", Description = "The IRIS user for the connections of the ingest pool.")
+    public String IngestUsername = "";
+
+    @FieldMetadata(Category = "SAP Service", Description = "The password of the IRIS user for the connections of the ingest pool.")
+    public String IngestPassword = "";
+
+    @FieldMetadata(Category = "SAP Service", Description = "A comma separated list of the functions whose messages are passed to IRIS by the ingest pool in the order they have been received. '*' keeps the order of all functions. The messages of all other functions are distributed across all threads.")
+    public String IngestOrderedFunctions = "*";
+
     // SAP Server Settings
     @SAPJCoPropertyAnnotation(jCoName = ServerDataProvider.JCO_GWHOST)
     @FieldMetadata(Category = "SAP Server Settings", IsRequired = true, Description = "REQUIRED<br>Set the gateway host address. The gateway host address is used to connect to the SAP system.")
@@ -116,7 +227,7 @@ public class InboundAdapter extends com.intersystems.enslib.pex.InboundAdapter
     @FieldMetadata(Category = "XML", Description = "If import XML schemas is enabled the XSD files are stored here. This folder must be accessible by the IRIS instance and the JAVA language server.")
     public String XMLSchemaPath = "";
 
-    @FieldMetadata(Category = "XML", Description = "REQUIRED<br>The maximum number of messages that can be queued for processing. If the queue is full, the adapter will print a warning and increase the throughput.")
+    @FieldMetadata(Category = "XML", Description = "REQUIRED<br>If enabled the adapter will flatten the tables and will remove the item tags.")
     public boolean FlattenTablesItems = false;
 
     @FieldMetadata(Category = "XML", Description = "Configure the XML namespace for the generated XML. Use \"{functionName}\" as placeholder for the function name. If left empty the namespace will be generated.")
@@ -128,14 +239,42 @@ public class InboundAdapter extends com.intersystems.enslib.pex.InboundAdapter
      * ***************
      */
 
+    // Size of the trace buffer, further trace messages are dropped
+    private static final int TRACE_BUFFER_SIZE = 8192;
+
+    // Trace messages that are written per call and per log entry
+    private static final int TRACE_MESSAGES_PER_CALL = 1000;
+    private static final int TRACE_MESSAGES_PER_LOG = 50;
+
+    // Size of the segment files of the spill-over
+    private static final int SPILL_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    // Size of the unused off-heap buffers that are kept for reuse
+    private static final long PAYLOAD_POOL_SIZE = 32 * 1024 * 1024;
+
+    // ObjectScript class of the messages that are passed to the business host
+    private static final String DATA_OBJECT_CLASS = "com.intersystems.dach.ens.sap.SAPDataObject";
+
+    // Data per gateway call of a batched hand-off, below the maximum length of an IRIS string
+    private static final long MAX_HANDOFF_CHARS = 3 * 1024 * 1024;
+
     private IRIS iris;
     private SAPServer sapServer;
     private IRISXSDSchemaImporter irisSchemaImporter;
-
-    private Queue<SAPImportData> importDataQueue;
+    private IRISSchemaStore schemaStore;
+    private AdaptiveBatchSizer batchSizer;
+    private IRISIngestPool ingestPool;
+    private LatencyStatistics statistics;
+    private long lastStatisticsNs;
+
+    private ImportDataQueue importDataQueue;
+    private ImportDataAggregator aggregator;
+    private ImportDataSpillStore spillStore;
     private Queue<Error> errorBuffer;
     private Queue<Exception> exceptionBuffer;
-    private Queue<String> traceBuffer;
+    private TraceManager traceManager;
+    private TraceRingBuffer traceBuffer;
+    private long reportedDroppedTraces;
     private Queue<String> warningTraceBuffer;
 
     private boolean warningActiveFlag = false;
@@ -143,12 +282,13 @@ public class InboundAdapter extends com.intersystems.enslib.pex.InboundAdapter
     @Override
     public void OnInit() throws Exception {
 
-        TraceManager traceManager = new TraceManager();
+        traceManager = new TraceManager();
         // register trace handler
         if (this.EnableTracing) {
             LOGINFO("Tracing is enabled.");
-            traceBuffer = new ConcurrentLinkedQueue<String>();
-            traceManager.registerTraceMsgHandler(traceMsg -> traceBuffer.add(traceMsg));
+            traceBuffer = new TraceRingBuffer(TRACE_BUFFER_SIZE);
+            traceManager.registerTraceMsgHandler(traceMsg -> traceBuffer.offer(traceMsg));
+            configureTracing(traceManager);
 
             // TODO only enable with traces?
             /*
@@ -169,16 +309,73 @@ public class InboundAdapter extends com.intersystems.enslib.pex.InboundAdapter
             LOGINFO("FlattenTablesItems is enabled.");
         }
 
+        if (EarlyAcknowledgeTransactions) {
+            if (TIDStorePath.isEmpty()) {
+                LOGWARNING("EarlyAcknowledgeTransactions requires a TIDStorePath. Transactional calls wait for the processing.");
+            } else {
+                LOGINFO("EarlyAcknowledgeTransactions is enabled.");
+            }
+        }
+
         // Prepare buffers
-        importDataQueue = new ConcurrentLinkedQueue<SAPImportData>();
+        importDataQueue = new ImportDataQueue(this.MaxQueueSize, this.MaxQueueSizeMB * 1024L * 1024L);
+
+        // Prepare the serving order of the functions
+        Map<String, Integer> weights = parseFunctionValues(FunctionWeights, "function weight");
+        Integer defaultWeight = weights.remove("*");
+        importDataQueue.configureScheduling(weights, defaultWeight == null ? 1 : defaultWeight,
+                parseFunctionNames(PriorityFunctions));
+
+        // Prepare the aggregation of messages
+        Set<String> aggregateFunctions = parseFunctionNames(AggregateFunctions);
+        aggregator = new ImportDataAggregator(importDataQueue, aggregateFunctions, AggregateMaxMessages,
+                AggregateMaxKB * 1024L, AggregateWindowMs);
+        if (!aggregateFunctions.isEmpty()) {
+            LOGINFO("Messages of " + aggregateFunctions + " are combined.");
+        }
+
+        // Prepare off-heap storage of queued data
+        if (QueueOffHeap) {
+            importDataQueue.enableOffHeap(new PayloadBufferPool(PAYLOAD_POOL_SIZE, QueueCompressionThresholdKB * 1024));
+            LOGINFO("Off-heap storage of queued data is enabled.");
+        }
+
+        // Prepare spill-over of queued data
+        if (!SpillPath.isEmpty()) {
+            try {
+                spillStore = new ImportDataSpillStore(SpillPath, SPILL_SEGMENT_SIZE);
+                importDataQueue.enableSpillOver(spillStore, SpillHeapMB * 1024L * 1024L,
+                        SpillMemoryThresholdPercent);
+                LOGINFO("Spill-over of queued data to " + SpillPath + " is enabled.");
+            } catch (IOException e) {
+                LOGWARNING("Spill-over of queued data is disabled, the folder " + SpillPath
+                        + " can't be used: " + e.getMessage());
+            }
+        }
         errorBuffer = new ConcurrentLinkedQueue<Error>();
         exceptionBuffer = new ConcurrentLinkedQueue<Exception>();
 
+        // Prepare schema references
+        schemaStore = new IRISSchemaStore();
+
+        // Prepare batch processing
+        batchSizer = new AdaptiveBatchSizer(this.MaxBatchSize, this.MaxBatchTimeMs);
+
+        // Prepare latency statistics
+        statistics = new LatencyStatistics();
+        lastStatisticsNs = System.nanoTime();
+
+        // Prepare parallel ingest
+        if (IngestPoolSize > 0) {
+            startIngestPool();
+        }
+
         // Prepare Schema Import
         if (!UseJSON && ImportXMLSchemas) {
             LOGINFO("XML Schemas import is enabled.");
             irisSchemaImporter = new IRISXSDSchemaImporter(this.XMLSchemaPath, traceManager);
             LOGINFO("XSD directory: " + irisSchemaImporter.getXsdDirectoryPath());
+            LOGINFO("Known XML schemas: " + irisSchemaImporter.getRegisteredSchemaCount());
         }
 
         // Prepare SAP JCo server
@@ -190,7 +387,9 @@ public class InboundAdapter extends com.intersystems.enslib.pex.InboundAdapter
                     this.FlattenTablesItems,
                     this.ConfirmationTimeoutSec * 1000,
                     this.UseJSON,
-                    this.XMLNamespace);
+                    this.XMLNamespace,
+                    this.TIDStorePath,
+                    this.EarlyAcknowledgeTransactions);
 
             sapServer = new SAPServer(sapServerArgs);
             sapServer.registerImportDataHandler(this);
@@ -202,6 +401,7 @@ public class InboundAdapter extends com.intersystems.enslib.pex.InboundAdapter
         } catch (Exception e) {
             LOGERROR("SAPService could not be started: " + e.getMessage());
             sapServer.stop();
+            sapServer.close();
             handleMessages();
             throw new InitializeException();
         }
@@ -212,6 +412,130 @@ public class InboundAdapter extends com.intersystems.enslib.pex.InboundAdapter
         }
     }
 
+    /**
+     * Start the ingest pool that passes the messages to IRIS in parallel. If the
+     * pool can't be started, the messages are passed by the adapter itself.
+     */
+    private void startIngestPool() {
+        if (IngestTarget.isEmpty()) {
+            LOGWARNING("The ingest pool requires an IngestTarget. Messages are passed by the adapter.");
+            return;
+        }
+        Set<String> orderedFunctions = parseFunctionNames(IngestOrderedFunctions);
+        try {
+            String namespace = iris.classMethodString("%SYSTEM.SYS", "NameSpace");
+            ingestPool = new IRISIngestPool(IngestPoolSize, "jdbc:IRIS://" + IngestServer + "/" + namespace,
+                    IngestUsername, IngestPassword, IngestTarget, orderedFunctions, StreamThresholdKB * 1024L,
+                    aggregator, statistics);
+            ingestPool.start();
+            LOGINFO("Started ingest pool with " + ingestPool.getPoolSize() + " connection(s) to " + IngestServer
+                    + "/" + namespace + ", target: " + IngestTarget + ".");
+        } catch (Exception e) {
+            ingestPool = null;
+            LOGWARNING("The ingest pool could not be started, messages are passed by the adapter: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Configure the traced categories and the trace level from the settings.
+     * 
+     * @param traceManager The trace manager to configure.
+     */
+    private void configureTracing(TraceManager traceManager) {
+        Collection<TraceManager.Category> categories = EnumSet.allOf(TraceManager.Category.class);
+        if (!TraceCategories.trim().isEmpty()) {
+            categories = EnumSet.noneOf(TraceManager.Category.class);
+            for (String category : TraceCategories.split(",")) {
+                try {
+                    categories.add(TraceManager.Category.valueOf(category.trim().toUpperCase()));
+                } catch (IllegalArgumentException e) {
+                    LOGWARNING("Unknown trace category: " + category.trim());
+                }
+            }
+        }
+        TraceManager.Level level = "Info".equalsIgnoreCase(TraceLevel) ? TraceManager.Level.INFO
+                : TraceManager.Level.DEBUG;
+        traceManager.configure(categories, level);
+        LOGINFO("Traced categories: " + categories + ", level: " + level + ".");
+
+        Map<String, Integer> sampleRates = parseFunctionValues(TraceSampleRates, "trace sample rate");
+        Integer defaultSampleRate = sampleRates.remove("*");
+        traceManager.configureSampling(sampleRates, defaultSampleRate == null ? 1 : defaultSampleRate);
+    }
+
+    /**
+     * Parse a setting in the form 'FUNCTION=n,*=n'. The value of all other
+     * functions is stored with the key "*".
+     * 
+     * @param setting The value of the setting.
+     * @param name    The name of the values for the warnings.
+     * @return The values by function name.
+     */
+    private Map<String, Integer> parseFunctionValues(String setting, String name) {
+        Map<String, Integer> values = new HashMap<String, Integer>();
+        for (String entry : setting.split(",")) {
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+            String[] parts = entry.split("=");
+            try {
+                values.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+            } catch (RuntimeException e) {
+                LOGWARNING("Invalid " + name + ": " + entry.trim());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Parse a comma separated list of function names.
+     * 
+     * @param setting The value of the setting.
+     * @return The function names.
+     */
+    private static Set<String> parseFunctionNames(String setting) {
+        Set<String> functionNames = new HashSet<String>();
+        for (String functionName : setting.split(",")) {
+            if (!functionName.trim().isEmpty()) {
+                functionNames.add(functionName.trim());
+            }
+        }
+        return functionNames;
+    }
+
+    /**
+     * Write the buffered trace messages to the log. Several messages are written
+     * with a single log entry and the number of messages per call is limited, so
+     * that tracing does not delay the processing of the queue.
+     */
+    private void logTraceMessages() {
+        StringBuilder sb = new StringBuilder();
+        int count = 0;
+        String message;
+        while (count < TRACE_MESSAGES_PER_CALL && (message = traceBuffer.poll()) != null) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append("## ").append(message);
+            count++;
+            if (count % TRACE_MESSAGES_PER_LOG == 0) {
+                LOGINFO(sb.toString());
+                sb.setLength(0);
+            }
+        }
+        if (sb.length() > 0) {
+            LOGINFO(sb.toString());
+        }
+
+        long droppedTraces = traceBuffer.getDroppedCount();
+        if (droppedTraces > reportedDroppedTraces) {
+            LOGWARNING((droppedTraces - reportedDroppedTraces)
+                    + " trace message(s) have been dropped, because the trace buffer was full.");
+            reportedDroppedTraces = droppedTraces;
+        }
+    }
+
     /**
      * Handle trace and errors messages and exceptions.
      * 
@@ -220,9 +544,7 @@ public class InboundAdapter extends com.intersystems.enslib.pex.InboundAdapter
     private boolean handleMessages() {
         // Handle trace, errors and exceptions
         if (traceBuffer != null) {
-            while (!traceBuffer.isEmpty()) {
-                LOGINFO("## " + traceBuffer.poll());
-            }
+            logTraceMessages();
         }
 
         if (warningTraceBuffer != null) {
@@ -252,7 +574,25 @@ public class InboundAdapter extends com.intersystems.enslib.pex.InboundAdapter
     @Override
     public void OnTask() throws Exception {
 
-        if (importDataQueue.isEmpty()) {
+        importXMLSchemas();
+        logStatistics();
+
+        if (ingestPool != null) {
+            // The messages are passed to IRIS by the ingest pool
+            String errorMessage;
+            while ((errorMessage = ingestPool.pollErrorMessage()) != null) {
+                LOGERROR(errorMessage);
+            }
+            if (handleMessages()) {
+                sapServer.stop();
+                handleMessages();
+                throw new OnTaskException();
+            }
+            BusinessHost.irisHandle.set("%WaitForNextCallInterval", true);
+            return;
+        }
+
+        if (importDataQueue.isEmpty() && !aggregator.hasPendingMessages()) {
             if (handleMessages()) {
                 sapServer.stop();
                 handleMessages();
@@ -271,40 +611,75 @@ public class InboundAdapter extends com.intersystems.enslib.pex.InboundAdapter
         }
 
         // Trigger high load warning
-        if (!warningActiveFlag && importDataQueue.size() > this.QueueWarningThreshold) {
-            LOGWARNING("High load. Current messages in Queue: " + importDataQueue.size());
+        int queueSize = importDataQueue.size();
+        if (!warningActiveFlag && queueSize > this.QueueWarningThreshold) {
+            LOGWARNING("High load. Current messages in Queue: " + queueSize + " ("
+                    + (importDataQueue.getBytes() / 1024) + " KB, " + importDataQueue.getSpilledCount()
+                    + " spilled to disk)");
             warningActiveFlag = true;
         }
 
-        // Get import data from queue
-        SAPImportData importData = importDataQueue.poll();
-
-        // Import XML schemas
-        if (!importData.isJSON() && ImportXMLSchemas && irisSchemaImporter != null) {
-            // import xsd
-            if (!importData.isSchemaComplete()) {
-                LOGWARNING("Importing incomplete XML schema for function '" + importData.getFunctionName() + "'.");
+        // Process a batch of import data from queue
+        int batchSize = batchSizer.nextBatchSize(queueSize);
+        long batchStartNs = System.nanoTime();
+        int processedCount = 0;
+        int expiredCount = 0;
+        List<SAPImportData> handOff = new ArrayList<SAPImportData>();
+        long handOffChars = 0;
+        SAPImportData importData;
+        while (processedCount < batchSize && (importData = aggregator.poll()) != null) {
+            if (importData.isExpired()) {
+                // The caller has already timed out and SAP will repeat the call
+                importData.cancel();
+                statistics.recordExpired(importData);
+                expiredCount++;
+                continue;
             }
-            try {
-                boolean importResult = irisSchemaImporter.importSchemaIfNotExists(
-                        importData.getFunctionName(),
-                        importData.getSchema(),
-                        importData.isSchemaComplete());
-                if (importResult) {
-                    LOGINFO("Imported new XML schema: " + importData.getFunctionName());
+            processedCount++;
+            if (!this.BatchHandOff) {
+                processImportData(importData);
+                if (batchSizer.isTimeBudgetExceeded(batchStartNs)) {
+                    break;
                 }
-            } catch (Exception e) {
-                LOGERROR("Error while importing XML schema for function '" +
-                        importData.getFunctionName() + "': " + e.getMessage());
+                continue;
+            }
+
+            // Large data is streamed, the list of a gateway call must fit into a single IRIS string
+            long dataChars = getDataLength(importData);
+            if (isStreamed(importData) || dataChars > MAX_HANDOFF_CHARS) {
+                processImportData(importData);
+                if (batchSizer.isTimeBudgetExceeded(batchStartNs)) {
+                    break;
+                }
+                continue;
+            }
+            boolean budgetExceeded = false;
+            if (!handOff.isEmpty() && handOffChars + dataChars > MAX_HANDOFF_CHARS) {
+                processImportData(handOff);
+                handOff.clear();
+                handOffChars = 0;
+                budgetExceeded = batchSizer.isTimeBudgetExceeded(batchStartNs);
+            }
+            // The message has been taken from the queue, so it is passed on with the last hand-off
+            handOff.add(importData);
+            handOffChars += dataChars;
+            if (budgetExceeded) {
+                break;
             }
         }
+        if (!handOff.isEmpty()) {
+            processImportData(handOff);
+        }
 
-        // Call ProcessInput
-        IRISObject irisObject = (IRISObject) iris.classMethodObject("com.intersystems.dach.ens.sap.SAPDataObject",
-                "%New", importData.getFunctionName(), importData.getData(), importData.getSchema(),
-                importData.isJSON());
-        BusinessHost.ProcessInput(irisObject);
-        importData.confirmProcessed(); // Data is now persistent in the Business process queue.
+        if (expiredCount > 0) {
+            LOGWARNING("Discarded " + expiredCount + " message(s) whose caller has already timed out.");
+        }
+
+        if (traceManager.isEnabled(TraceManager.Category.SERVER, TraceManager.Level.DEBUG)) {
+            traceManager.trace(TraceManager.Category.SERVER, TraceManager.Level.DEBUG, "Processed " + processedCount
+                    + " message(s) in this call. Average ProcessInput latency: "
+                    + String.format("%.2f", batchSizer.getAverageLatencyMs()) + " ms.");
+        }
 
         if (handleMessages()) {
             sapServer.stop();
@@ -327,6 +702,257 @@ public class InboundAdapter extends com.intersystems.enslib.pex.InboundAdapter
         }
     }
 
+    /**
+     * Register the schema if necessary and pass the import data to the business
+     * host. If a step fails, the failure is reported to the caller at once, so
+     * the RFC call does not wait for the confirmation timeout.
+     * 
+     * @param importData The import data to process.
+     */
+    private void processImportData(SAPImportData importData) {
+        if (!registerSchema(importData)) {
+            return;
+        }
+
+        long startNs = System.nanoTime();
+        IRISObject irisObject;
+        try {
+            if (isStreamed(importData)) {
+                // Large data is written to a stream in chunks
+                IRISObject dataStream = IRISStreamWriter.write(iris, importData);
+                irisObject = (IRISObject) iris.classMethodObject(DATA_OBJECT_CLASS, "%New",
+                        importData.getFunctionName(), "", "", importData.isJSON(), getSchemaHash(importData), false,
+                        importData.getBatchCount(), dataStream);
+            } else {
+                // Data that is available as UTF-8 bytes is passed on without creating a String
+                boolean isUTF8 = importData.isDataUTF8();
+                Object data = isUTF8 ? importData.getDataUTF8() : importData.getData();
+                irisObject = (IRISObject) iris.classMethodObject(DATA_OBJECT_CLASS, "%New",
+                        importData.getFunctionName(), data, "", importData.isJSON(), getSchemaHash(importData), isUTF8,
+                        importData.getBatchCount());
+            }
+        } catch (Exception e) {
+            failImportData(importData, ProcessingException.Reason.OBJECT_CREATION,
+                    "Could not create SAPDataObject", e);
+            return;
+        }
+
+        // Call ProcessInput
+        try {
+            BusinessHost.ProcessInput(irisObject);
+        } catch (Exception e) {
+            failImportData(importData, ProcessingException.Reason.PROCESS_INPUT, "ProcessInput failed", e);
+            return;
+        }
+        importData.markStage(SAPImportData.Stage.PROCESSED);
+        batchSizer.recordLatency(importData.getStageTime(SAPImportData.Stage.PROCESSED) - startNs);
+        importData.confirmProcessed(); // Data is now persistent in the Business process queue.
+        statistics.recordProcessed(importData);
+    }
+
+    /**
+     * Register the schemas if necessary and pass all import data to the business
+     * host with a single gateway call. IRIS creates the SAPDataObjects and calls
+     * ProcessInput for each of them, then the outcome of every message is
+     * reported to its caller.
+     * 
+     * @param importDataList The import data to process.
+     */
+    private void processImportData(List<SAPImportData> importDataList) {
+        List<SAPImportData> handOff = new ArrayList<SAPImportData>(importDataList.size());
+        IRISList entries = new IRISList();
+        for (SAPImportData importData : importDataList) {
+            if (!registerSchema(importData)) {
+                continue;
+            }
+            // Data that is available as UTF-8 bytes is passed on without creating a String
+            boolean isUTF8 = importData.isDataUTF8();
+            String schemaHash = getSchemaHash(importData);
+            IRISList entry = new IRISList();
+            entry.add(importData.getFunctionName());
+            entry.add(isUTF8 ? importData.getDataUTF8() : importData.getData());
+            entry.add(importData.isJSON() ? 1 : 0);
+            entry.add(schemaHash == null ? "" : schemaHash);
+            entry.add(isUTF8 ? 1 : 0);
+            entry.add(importData.getBatchCount());
+            entries.add(entry);
+            handOff.add(importData);
+        }
+        if (handOff.isEmpty()) {
+            return;
+        }
+
+        long startNs = System.nanoTime();
+        String results;
+        try {
+            results = iris.classMethodString(DATA_OBJECT_CLASS, "ProcessInputBatch", BusinessHost.irisHandle,
+                    entries);
+        } catch (Exception e) {
+            for (SAPImportData importData : handOff) {
+                failImportData(importData, ProcessingException.Reason.PROCESS_INPUT, "ProcessInput failed", e);
+            }
+            return;
+        }
+        long endNs = System.nanoTime();
+        batchSizer.recordLatency((endNs - startNs) / handOff.size());
+
+        // One line per message, empty if it has been processed or the failed step and the error
+        String[] lines = results == null ? new String[0] : results.split("\n", -1);
+        for (int i = 0; i < handOff.size(); i++) {
+            SAPImportData importData = handOff.get(i);
+            String result = i < lines.length ? lines[i] : "PROCESS_INPUT:No result returned";
+            if (result.isEmpty()) {
+                importData.markStage(SAPImportData.Stage.PROCESSED, endNs);
+                importData.confirmProcessed(); // Data is now persistent in the Business process queue.
+                statistics.recordProcessed(importData);
+                continue;
+            }
+            ProcessingException.Reason reason = ProcessingException.Reason.PROCESS_INPUT;
+            int separator = result.indexOf(':');
+            if (separator > 0) {
+                try {
+                    reason = ProcessingException.Reason.valueOf(result.substring(0, separator));
+                    result = result.substring(separator + 1);
+                } catch (IllegalArgumentException e) {
+                    // the whole line is the error
+                }
+            }
+            failImportData(importData, reason, reason == ProcessingException.Reason.OBJECT_CREATION
+                    ? "Could not create SAPDataObject"
+                    : "ProcessInput failed", new ProcessingException(reason, result, null));
+        }
+    }
+
+    /**
+     * Register the schema of the import data once, the message only references
+     * it by its hash. If the registration fails, the failure is reported to the
+     * caller.
+     * 
+     * @param importData The import data whose schema is registered.
+     * @return false if the registration failed.
+     */
+    private boolean registerSchema(SAPImportData importData) {
+        String schemaHash = getSchemaHash(importData);
+        if (schemaHash == null) {
+            return true;
+        }
+        try {
+            schemaStore.register(iris, schemaHash, importData.getSchema());
+        } catch (Exception e) {
+            failImportData(importData, ProcessingException.Reason.SCHEMA_REGISTRATION,
+                    "Could not register XML schema", e);
+            return false;
+        }
+        return true;
+    }
+
+    private static String getSchemaHash(SAPImportData importData) {
+        return importData.isJSON() ? null : importData.getSchemaHash();
+    }
+
+    /**
+     * Check if the data of the import data is passed to IRIS as a stream.
+     * 
+     * @param importData The import data.
+     * @return true if the data is at least StreamThresholdKB in size.
+     */
+    private boolean isStreamed(SAPImportData importData) {
+        return StreamThresholdKB > 0 && getDataLength(importData) >= StreamThresholdKB * 1024L;
+    }
+
+    private static long getDataLength(SAPImportData importData) {
+        if (importData.isDataUTF8()) {
+            return importData.getDataUTF8().length;
+        }
+        String data = importData.getData();
+        return data == null ? 0 : data.length();
+    }
+
+    /**
+     * Log a failed processing and release the caller of the import data.
+     * 
+     * @param importData The import data that could not be processed.
+     * @param reason     The step of the processing that failed.
+     * @param message    The description of the failure.
+     * @param e          The cause of the failure.
+     */
+    private void failImportData(SAPImportData importData, ProcessingException.Reason reason, String message,
+            Exception e) {
+        String fullMessage = message + " for function '" + importData.getFunctionName() + "': " + e.getMessage();
+        LOGERROR(fullMessage);
+        importData.failProcessing(reason, fullMessage, e);
+        statistics.recordFailed(importData);
+    }
+
+    /**
+     * Write the summary of the statistics to the log, if the interval has
+     * elapsed.
+     */
+    private void logStatistics() {
+        if (StatisticsIntervalSec <= 0
+                || System.nanoTime() - lastStatisticsNs < StatisticsIntervalSec * 1000000000L) {
+            return;
+        }
+        lastStatisticsNs = System.nanoTime();
+        String summary = statistics.summarize();
+        LOGINFO("Statistics: " + importDataQueue.size() + " message(s) in queue, oldest " + getOldestMessageAgeMs()
+                + " ms" + (summary.isEmpty() ? "" : "; " + summary));
+    }
+
+    /**
+     * @return The time in milliseconds the oldest message is waiting in the
+     *         queue, 0 if the queue is empty.
+     */
+    private long getOldestMessageAgeMs() {
+        long oldestNs = importDataQueue.getOldestEnqueueTime();
+        return oldestNs == 0 ? 0 : (System.nanoTime() - oldestNs) / 1000000;
+    }
+
+    /**
+     * Get the statistics of the adapter as a JSON object: the depth of the queue,
+     * the age of the oldest message and per function the number of queued,
+     * processed, failed and expired messages and the latencies of each stage in
+     * microseconds. Can be called from ObjectScript.
+     * 
+     * @return The statistics as JSON object.
+     */
+    public String GetStatistics() {
+        if (statistics == null) {
+            return "{}";
+        }
+        return "{\"queueSize\":" + importDataQueue.size()
+                + ",\"queueBytes\":" + importDataQueue.getBytes()
+                + ",\"spilled\":" + importDataQueue.getSpilledCount()
+                + ",\"oldestMessageAgeMs\":" + getOldestMessageAgeMs()
+                + ",\"functions\":" + statistics.toJSON() + "}";
+    }
+
+    /**
+     * Start the import of new XML schemas and log the finished imports. The
+     * imports run in the background, so the message processing continues.
+     */
+    private void importXMLSchemas() {
+        if (irisSchemaImporter == null) {
+            return;
+        }
+
+        try {
+            irisSchemaImporter.startImports(iris);
+        } catch (Exception e) {
+            LOGERROR("Error while starting the import of XML schemas: " + e.getMessage());
+        }
+
+        IRISXSDSchemaImporter.ImportResult result;
+        while ((result = irisSchemaImporter.pollCompletedImport()) != null) {
+            if (result.isSuccessful()) {
+                LOGINFO("Imported new XML schema: " + result.getSchemaId());
+            } else {
+                LOGERROR("Error while importing XML schema for function '" +
+                        result.getSchemaId() + "': " + result.getMessage());
+            }
+        }
+    }
+
     @Override
     public void OnTearDown() throws Exception {
         try {
@@ -338,11 +964,42 @@ public class InboundAdapter extends com.intersystems.enslib.pex.InboundAdapter
 
         handleMessages();
 
+        if (ingestPool != null) {
+            ingestPool.close();
+            String errorMessage;
+            while ((errorMessage = ingestPool.pollErrorMessage()) != null) {
+                LOGERROR(errorMessage);
+            }
+            ingestPool = null;
+        }
+
+        // Release the callers of the data that will not be processed anymore
+        aggregator.cancelPendingMessages();
+        SAPImportData importData;
+        while ((importData = importDataQueue.poll()) != null) {
+            importData.cancel();
+        }
+
+        if (spillStore != null) {
+            spillStore.close();
+            spillStore = null;
+        }
+
+        // Close the journal and the TID store last, so that the outcome of the
+        // processed data is recorded and no journaled data is replayed twice
+        if (sapServer != null) {
+            sapServer.close();
+            handleMessages();
+        }
+
         // Close iris connection
         GatewayContext.getIRIS().close();
 
-        // Reset iris XML schema importer
-        this.irisSchemaImporter = null;
+        // Stop and reset iris XML schema importer
+        if (this.irisSchemaImporter != null) {
+            this.irisSchemaImporter.close();
+            this.irisSchemaImporter = null;
+        }
     }
 
     /**
@@ -364,8 +1021,36 @@ public class InboundAdapter extends com.intersystems.enslib.pex.InboundAdapter
     }
 
     @Override
-    public void onImportDataReceived(SAPImportData data) {
-        importDataQueue.add(data);
+    public void onImportDataReceived(SAPImportData data) throws QueueFullException {
+        // Wait for free space only if configured, otherwise reject at once. The
+        // wait ends at the deadline of the caller, journaled data has none and
+        // waits up to the confirmation timeout counted from the receipt.
+        long timeoutMs = 0;
+        if (!"Reject".equalsIgnoreCase(QueueFullPolicy)) {
+            long deadlineNs = data.getDeadline();
+            long receivedNs = data.getStageTime(SAPImportData.Stage.RECEIVED);
+            if (deadlineNs == 0 && receivedNs != 0) {
+                deadlineNs = receivedNs + ConfirmationTimeoutSec * 1000000000L;
+            }
+            timeoutMs = deadlineNs == 0 ? ConfirmationTimeoutSec * 1000L
+                    : Math.max(0, (deadlineNs - System.nanoTime()) / 1000000L);
+        }
+        try {
+            if (!importDataQueue.offer(data, timeoutMs)) {
+                throw new QueueFullException(importDataQueue.size() + " messages with "
+                        + (importDataQueue.getBytes() / 1024) + " KB are waiting to be processed.");
+            }
+            statistics.recordQueued(data.getFunctionName());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QueueFullException("Interrupted while waiting for free space in the queue.");
+        }
+
+        // Submit new XML schemas, they are imported in the background
+        IRISXSDSchemaImporter schemaImporter = irisSchemaImporter;
+        if (!data.isJSON() && schemaImporter != null) {
+            schemaImporter.submitSchema(data.getFunctionName(), data.getSchemaHash(), data.getSchema());
+        }
     }
 
     @Override
@@ -380,9 +1065,8 @@ public class InboundAdapter extends com.intersystems.enslib.pex.InboundAdapter
 
     @Override
     public void onStateChanged(JCoServerState oldState, JCoServerState newState) {
-        if (this.EnableTracing) {
-            traceBuffer.add("SAP server state changed from " + oldState.toString() + " to " + newState.toString());
-        }
+        traceManager.trace(TraceManager.Category.SERVER, TraceManager.Level.INFO,
+                "SAP server state changed from {} to {}", oldState, newState);
     }
 
     /**
@@ -54,8 +54,7 @@ public final class TestCaseCollection {
                                                 "Z_BRUSHES",
                                                 "<?xml version=\"1.0\" ?>\r\n<Z_BRUSHES><BRUSH><NAME>red</NAME><VALUE>#f00</VALUE></BRUSH><BRUSH><NAME>green</NAME><VALUE>#0f0</VALUE></BRUSH></Z_BRUSHES>",
                                                 false,
-                                                "<xs:schema attributeFormDefault=\"unqualified\" elementFormDefault=\"qualified\" xmlns:xs=\"http://www.w3.org/2001/XMLSchema\"><xs:element name=\"Z_BRUSHES\"><xs:complexType><xs:sequence><xs:element name=\"BRUSH\" maxOccurs=\"unbounded\" minOccurs=\"0\"><xs:complexType><xs:sequence><xs:element type=\"xs:string\" name=\"NAME\"/><xs:element type=\"xs:string\" name=\"VALUE\"/></xs:sequence></xs:complexType></xs:element></xs:sequence></xs:complexType></xs:element></xs:schema>",
-                                                true),
+                                                "<xs:schema attributeFormDefault=\"unqualified\" elementFormDefault=\"qualified\" xmlns:xs=\"http://www.w3.org/2001/XMLSchema\"><xs:element name=\"Z_BRUSHES\"><xs:complexType><xs:sequence><xs:element name=\"BRUSH\" maxOccurs=\"unbounded\" minOccurs=\"0\"><xs:complexType><xs:sequence><xs:element type=\"xs:string\" name=\"NAME\"/><xs:element type=\"xs:string\" name=\"VALUE\"/></xs:sequence></xs:complexType></xs:element></xs:sequence></xs:complexType></xs:element></xs:schema>"),
                                 700);
 
                 TestCase tc2 = new TestCase(
@@ -63,8 +62,7 @@ public final class TestCaseCollection {
                                                 "Z_COLORS",
                                                 "<?xml version=\"1.0\" ?>\r\n<Z_COLOR><COLOR><NAME>red</NAME><VALUE>#f00</VALUE></COLOR><COLOR><NAME>green</NAME><VALUE>#0f0</VALUE></COLOR></Z_COLOR>",
                                                 false,
-                                                "<xs:schema attributeFormDefault=\"unqualified\" elementFormDefault=\"qualified\" xmlns:xs=\"http://www.w3.org/2001/XMLSchema\"><xs:element name=\"Z_COLOR\"><xs:complexType><xs:sequence><xs:element name=\"COLOR\" maxOccurs=\"unbounded\" minOccurs=\"0\"><xs:complexType><xs:sequence><xs:element type=\"xs:string\" name=\"NAME\"/><xs:element type=\"xs:string\" name=\"VALUE\"/></xs:sequence></xs:complexType></xs:element></xs:sequence></xs:complexType></xs:element></xs:schema>",
-                                                false),
+                                                "<xs:schema attributeFormDefault=\"unqualified\" elementFormDefault=\"qualified\" xmlns:xs=\"http://www.w3.org/2001/XMLSchema\"><xs:element name=\"Z_COLOR\"><xs:complexType><xs:sequence><xs:element name=\"COLOR\" maxOccurs=\"unbounded\" minOccurs=\"0\"><xs:complexType><xs:sequence><xs:element type=\"xs:string\" name=\"NAME\"/><xs:element type=\"xs:string\" name=\"VALUE\"/></xs:sequence></xs:complexType></xs:element></xs:sequence></xs:complexType></xs:element></xs:schema>"),
                                 1500);
 
                 TestCase tc3 = new TestCase(
@@ -4,6 +4,7 @@ import java.util.Collection;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
+import com.intersystems.dach.exceptions.QueueFullException;
 import com.intersystems.dach.sap.SAPImportData;
 import com.intersystems.dach.sap.handlers.SAPServerImportDataHandler;
 
@@ -96,7 +97,15 @@ public class TestRunner implements Runnable {
         if (testStatusHandler != null) {
             testStatusHandler.onTestStatus("Starting test '" + importData.getFunctionName() + "'.");
         }
-        importDataHandler.onImportDataReceived(importData);
+        try {
+            importDataHandler.onImportDataReceived(importData);
+        } catch (QueueFullException e) {
+            if (testStatusHandler != null) {
+                testStatusHandler.onTestStatus("Test '" + importData.getFunctionName() + "' rejected: "
+                        + e.getMessage());
+            }
+            importData.cancel();
+        }
 
         if (!lastTestCase) {
             new Thread(this).start();
@@ -0,0 +1,82 @@
+package com.intersystems.dach.ens.sap.utils;
+
+/**
+ * This class calculates how many messages the InboundAdapter should process in
+ * a single OnTask call. The batch size is adapted to the measured ProcessInput
+ * latency, so that a batch roughly fits into the configured time budget.
+ */
+public class AdaptiveBatchSizer {
+
+    // Weight of the latest latency sample for the moving average
+    private static final double SMOOTHING_FACTOR = 0.2;
+
+    private final int maxBatchSize;
+    private final long timeBudgetNs;
+
+    // Moving average of the ProcessInput latency in nanoseconds, 0 if unknown
+    private double averageLatencyNs;
+
+    /**
+     * Create a new batch sizer.
+     *
+     * @param maxBatchSize The maximum number of messages per batch.
+     * @param timeBudgetMs The time budget for a batch in milliseconds.
+     */
+    public AdaptiveBatchSizer(int maxBatchSize, int timeBudgetMs) {
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.timeBudgetNs = Math.max(1, timeBudgetMs) * 1000000L;
+        this.averageLatencyNs = 0;
+    }
+
+    /**
+     * Get the size of the next batch.
+     *
+     * @param queueDepth The current number of messages in the queue.
+     * @return The number of messages to process in the next batch.
+     */
+    public int nextBatchSize(int queueDepth) {
+        int batchSize = maxBatchSize;
+        if (averageLatencyNs > 0) {
+            long fittingMessages = (long) (timeBudgetNs / averageLatencyNs);
+            if (fittingMessages < batchSize) {
+                batchSize = (int) fittingMessages;
+            }
+        }
+        if (queueDepth < batchSize) {
+            batchSize = queueDepth;
+        }
+        return Math.max(1, batchSize);
+    }
+
+    /**
+     * Record the latency of a single ProcessInput call.
+     *
+     * @param latencyNs The latency in nanoseconds.
+     */
+    public void recordLatency(long latencyNs) {
+        if (averageLatencyNs == 0) {
+            averageLatencyNs = latencyNs;
+        } else {
+            averageLatencyNs += SMOOTHING_FACTOR * (latencyNs - averageLatencyNs);
+        }
+    }
+
+    /**
+     * Check if the time budget of a batch is used up.
+     *
+     * @param batchStartNs The start time of the batch as returned by
+     *                     {@link System#nanoTime()}.
+     * @return true if the time budget is used up, false if not.
+     */
+    public boolean isTimeBudgetExceeded(long batchStartNs) {
+        return System.nanoTime() - batchStartNs >= timeBudgetNs;
+    }
+
+    /**
+     * @return The average ProcessInput latency in milliseconds.
+     */
+    public double getAverageLatencyMs() {
+        return averageLatencyNs / 1000000.0;
+    }
+
+}
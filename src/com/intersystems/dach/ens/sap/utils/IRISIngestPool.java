@@ -0,0 +1,321 @@
+package com.intersystems.dach.ens.sap.utils;
+
+import java.io.Closeable;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.intersystems.dach.exceptions.ProcessingException;
+import com.intersystems.dach.sap.SAPImportData;
+import com.intersystems.jdbc.IRIS;
+import com.intersystems.jdbc.IRISConnection;
+import com.intersystems.jdbc.IRISObject;
+
+/**
+ * Passes the messages of the import data queue to IRIS with several threads in
+ * parallel. Every worker thread has its own IRIS connection and submits the
+ * messages to a business service of the production. The messages of an ordered
+ * function are always handled by the same worker, so they keep their order.
+ *
+ * The workers must not use the connection of the InboundAdapter. Errors are
+ * collected and must be logged by the thread of the InboundAdapter.
+ */
+public class IRISIngestPool implements Closeable {
+
+    // ObjectScript class that creates the data object and calls the business service
+    private static final String WORKER_CLASS = "com.intersystems.dach.ens.sap.IngestWorker";
+
+    // Messages that are handed to a worker in advance
+    private static final int LANE_CAPACITY = 16;
+
+    private static final long POLL_TIMEOUT_MS = 100;
+    private static final long STOP_TIMEOUT_MS = 10000;
+
+    private final ImportDataAggregator source;
+    private final LatencyStatistics statistics;
+    private final String connectionUrl;
+    private final String username;
+    private final String password;
+    private final String targetName;
+    private final Set<String> orderedFunctions;
+    private final boolean orderAll;
+    private final long streamThreshold;
+
+    private final List<Worker> workers = new ArrayList<Worker>();
+    private final Thread dispatcher;
+    private volatile boolean running = true;
+
+    // Errors that have not been logged yet
+    private final Queue<String> errorMessages = new ConcurrentLinkedQueue<String>();
+
+    /**
+     * Create a new pool and open the connections of its workers.
+     *
+     * @param poolSize         The number of worker threads.
+     * @param connectionUrl    The JDBC URL of the IRIS namespace.
+     * @param username         The IRIS user.
+     * @param password         The password of the IRIS user.
+     * @param targetName       The name of the business service the messages are
+     *                         submitted to.
+     * @param orderedFunctions The functions whose messages keep their order, "*"
+     *                         for all functions.
+     * @param streamThreshold  The size of the data from which it is passed as a
+     *                         stream, 0 to pass all data as a string.
+     * @param source           The aggregator to take the messages from.
+     * @param statistics       The statistics to record the processed messages.
+     * @throws SQLException If a connection can't be opened.
+     */
+    public IRISIngestPool(int poolSize, String connectionUrl, String username, String password, String targetName,
+            Set<String> orderedFunctions, long streamThreshold, ImportDataAggregator source,
+            LatencyStatistics statistics)
+            throws SQLException {
+        this.connectionUrl = connectionUrl;
+        this.username = username;
+        this.password = password;
+        this.targetName = targetName;
+        this.orderedFunctions = orderedFunctions;
+        this.orderAll = orderedFunctions.contains("*");
+        this.streamThreshold = streamThreshold;
+        this.source = source;
+        this.statistics = statistics;
+
+        try {
+            for (int i = 0; i < Math.max(1, poolSize); i++) {
+                Worker worker = new Worker(i + 1);
+                worker.connect();
+                workers.add(worker);
+            }
+        } catch (SQLException e) {
+            for (Worker worker : workers) {
+                worker.disconnect();
+            }
+            throw e;
+        }
+
+        dispatcher = new Thread(this::dispatch, "SAP ingest dispatcher");
+        dispatcher.setDaemon(true);
+    }
+
+    /**
+     * Start the worker threads.
+     */
+    public void start() {
+        for (Worker worker : workers) {
+            worker.thread.start();
+        }
+        dispatcher.start();
+    }
+
+    /**
+     * @return The number of worker threads.
+     */
+    public int getPoolSize() {
+        return workers.size();
+    }
+
+    /**
+     * Take the next error message that has not been logged yet.
+     *
+     * @return The error message or null if there is none.
+     */
+    public String pollErrorMessage() {
+        return errorMessages.poll();
+    }
+
+    /**
+     * Stop the threads and close the connections. The messages that have been
+     * handed to a worker but not processed are cancelled, the messages in the
+     * import data queue are left there.
+     */
+    @Override
+    public void close() {
+        running = false;
+        dispatcher.interrupt();
+        join(dispatcher);
+        for (Worker worker : workers) {
+            worker.thread.interrupt();
+        }
+        for (Worker worker : workers) {
+            join(worker.thread);
+            SAPImportData importData;
+            while ((importData = worker.lane.poll()) != null) {
+                importData.cancel();
+            }
+            worker.disconnect();
+        }
+    }
+
+    /**
+     * Hand the messages of the queue to the workers. The messages of an ordered
+     * function go to the same worker, all other messages to the worker with the
+     * fewest messages.
+     */
+    private void dispatch() {
+        SAPImportData importData = null;
+        try {
+            while (running) {
+                importData = source.poll(POLL_TIMEOUT_MS);
+                if (importData != null) {
+                    selectWorker(importData.getFunctionName()).lane.put(importData);
+                    importData = null;
+                }
+            }
+        } catch (InterruptedException e) {
+            // the pool is closed
+            if (importData != null) {
+                importData.cancel();
+            }
+        }
+    }
+
+    private Worker selectWorker(String functionName) {
+        if (orderAll || orderedFunctions.contains(functionName)) {
+            return workers.get((functionName.hashCode() & Integer.MAX_VALUE) % workers.size());
+        }
+        Worker selected = workers.get(0);
+        for (Worker worker : workers) {
+            if (worker.lane.size() < selected.lane.size()) {
+                selected = worker;
+            }
+        }
+        return selected;
+    }
+
+    private boolean isStreamed(SAPImportData importData) {
+        if (streamThreshold <= 0) {
+            return false;
+        }
+        if (importData.isDataUTF8()) {
+            return importData.getDataUTF8().length >= streamThreshold;
+        }
+        String data = importData.getData();
+        return data != null && data.length() >= streamThreshold;
+    }
+
+    private static void join(Thread thread) {
+        try {
+            thread.join(STOP_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final class Worker {
+
+        private final BlockingQueue<SAPImportData> lane = new ArrayBlockingQueue<SAPImportData>(LANE_CAPACITY);
+        private final Thread thread;
+
+        // The schemas are registered once per connection
+        private final IRISSchemaStore schemaStore = new IRISSchemaStore();
+
+        private IRISConnection connection;
+        private IRIS iris;
+
+        private Worker(int number) {
+            thread = new Thread(this::run, "SAP ingest worker " + number);
+            thread.setDaemon(true);
+        }
+
+        private void run() {
+            try {
+                while (running) {
+                    SAPImportData importData = lane.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    if (importData == null) {
+                        continue;
+                    }
+                    if (importData.isExpired()) {
+                        // The caller has already timed out and SAP will repeat the call
+                        importData.cancel();
+                        statistics.recordExpired(importData);
+                        continue;
+                    }
+                    process(importData);
+                }
+            } catch (InterruptedException e) {
+                // the pool is closed
+            }
+        }
+
+        private void process(SAPImportData importData) {
+            if (iris == null) {
+                try {
+                    connect();
+                } catch (SQLException e) {
+                    fail(importData, ProcessingException.Reason.UNKNOWN, "Could not connect to IRIS", e);
+                    return;
+                }
+            }
+
+            String schemaHash = null;
+            if (!importData.isJSON() && importData.getSchemaHash() != null) {
+                schemaHash = importData.getSchemaHash();
+                try {
+                    schemaStore.register(iris, schemaHash, importData.getSchema());
+                } catch (Exception e) {
+                    fail(importData, ProcessingException.Reason.SCHEMA_REGISTRATION, "Could not register XML schema",
+                            e);
+                    return;
+                }
+            }
+
+            try {
+                if (isStreamed(importData)) {
+                    // Large data is written to a stream in chunks
+                    IRISObject dataStream = IRISStreamWriter.write(iris, importData);
+                    iris.classMethodStatusCode(WORKER_CLASS, "Submit", targetName, importData.getFunctionName(), "",
+                            importData.isJSON(), schemaHash, false, importData.getBatchCount(), dataStream);
+                } else {
+                    // Data that is available as UTF-8 bytes is passed on without creating a String
+                    boolean isUTF8 = importData.isDataUTF8();
+                    Object data = isUTF8 ? importData.getDataUTF8() : importData.getData();
+                    iris.classMethodStatusCode(WORKER_CLASS, "Submit", targetName, importData.getFunctionName(),
+                            data, importData.isJSON(), schemaHash, isUTF8, importData.getBatchCount());
+                }
+            } catch (Exception e) {
+                fail(importData, ProcessingException.Reason.PROCESS_INPUT,
+                        "Could not submit data to " + targetName, e);
+                // The connection is opened again for the next message
+                disconnect();
+                return;
+            }
+            importData.markStage(SAPImportData.Stage.PROCESSED);
+            importData.confirmProcessed();
+            statistics.recordProcessed(importData);
+        }
+
+        private void fail(SAPImportData importData, ProcessingException.Reason reason, String message, Exception e) {
+            String fullMessage = message + " for function '" + importData.getFunctionName() + "': " + e.getMessage();
+            errorMessages.add(thread.getName() + ": " + fullMessage);
+            importData.failProcessing(reason, fullMessage, e);
+            statistics.recordFailed(importData);
+        }
+
+        private void connect() throws SQLException {
+            connection = (IRISConnection) DriverManager.getConnection(connectionUrl, username, password);
+            iris = IRIS.createIRIS(connection);
+        }
+
+        private void disconnect() {
+            try {
+                if (iris != null) {
+                    iris.close();
+                }
+                if (connection != null) {
+                    connection.close();
+                }
+            } catch (Exception e) {
+                // the connection is not used anymore
+            }
+            iris = null;
+            connection = null;
+        }
+    }
+
+}
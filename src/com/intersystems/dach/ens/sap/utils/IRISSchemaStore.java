@@ -0,0 +1,50 @@
+package com.intersystems.dach.ens.sap.utils;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import com.intersystems.jdbc.IRIS;
+
+/**
+ * This class registers XSD schemas in the IRIS schema store. A schema is sent
+ * to IRIS only once, messages reference it by the hash of its content. The
+ * methods must be called from the thread that owns the IRIS connection.
+ */
+public class IRISSchemaStore {
+
+    // ObjectScript class that stores the schemas
+    private static final String STORE_CLASS = "com.intersystems.dach.ens.sap.SchemaStore";
+
+    // Hashes of the schemas that have been registered by this instance
+    private final Set<String> registeredHashes = new HashSet<String>();
+
+    /**
+     * Register a schema in IRIS if it has not been registered yet.
+     *
+     * @param iris   The IRIS instance
+     * @param hash   The hash of the schema content
+     * @param schema The XSD schema
+     * @return true if the schema was sent to IRIS, false if it was already
+     *         registered.
+     */
+    public boolean register(IRIS iris, String hash, String schema) {
+        if (registeredHashes.contains(hash)) {
+            return false;
+        }
+        iris.classMethodStatusCode(STORE_CLASS, "Register", hash, schema);
+        registeredHashes.add(hash);
+        return true;
+    }
+
+    /**
+     * Look up a schema in IRIS.
+     *
+     * @param iris The IRIS instance
+     * @param hash The hash of the schema content
+     * @return The XSD schema or an empty String if the hash is unknown
+     */
+    public String lookup(IRIS iris, String hash) {
+        return iris.classMethodString(STORE_CLASS, "Get", hash);
+    }
+
+}
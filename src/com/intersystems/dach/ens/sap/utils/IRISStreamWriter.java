@@ -0,0 +1,74 @@
+package com.intersystems.dach.ens.sap.utils;
+
+import java.util.Arrays;
+
+import com.intersystems.dach.sap.SAPImportData;
+import com.intersystems.jdbc.IRIS;
+import com.intersystems.jdbc.IRISObject;
+
+/**
+ * Passes the data of large messages to IRIS in chunks. The chunks are appended
+ * to a stream that is created in IRIS, so the data does not have to fit into a
+ * single IRIS string and no side holds more than a chunk of it in addition to
+ * the message. The methods must be called from the thread that owns the IRIS
+ * connection.
+ */
+public class IRISStreamWriter {
+
+    // ObjectScript class that appends the chunks to the stream
+    private static final String DATA_OBJECT_CLASS = "com.intersystems.dach.ens.sap.SAPDataObject";
+
+    // Class of the stream in IRIS, it can be persisted with the message
+    private static final String STREAM_CLASS = "%Stream.GlobalCharacter";
+
+    // Characters or bytes per gateway call
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    private IRISStreamWriter() {
+    }
+
+    /**
+     * Write the data of a message to a new stream in IRIS.
+     *
+     * @param iris       The IRIS instance
+     * @param importData The message whose data is written
+     * @return The stream that contains the data
+     */
+    public static IRISObject write(IRIS iris, SAPImportData importData) {
+        IRISObject stream = (IRISObject) iris.classMethodObject(STREAM_CLASS, "%New");
+        if (importData.isDataUTF8()) {
+            byte[] data = importData.getDataUTF8();
+            int start = 0;
+            while (start < data.length) {
+                int end = Math.min(start + CHUNK_SIZE, data.length);
+                // A chunk must not end within the bytes of a character
+                int charEnd = end;
+                while (charEnd < data.length && charEnd > start && (data[charEnd] & 0xC0) == 0x80) {
+                    charEnd--;
+                }
+                if (charEnd > start) {
+                    end = charEnd;
+                }
+                iris.classMethodStatusCode(DATA_OBJECT_CLASS, "WriteChunk", stream,
+                        Arrays.copyOfRange(data, start, end), true);
+                start = end;
+            }
+        } else {
+            String data = importData.getData();
+            int length = data == null ? 0 : data.length();
+            int start = 0;
+            while (start < length) {
+                int end = Math.min(start + CHUNK_SIZE, length);
+                // A chunk must not end between the chars of a surrogate pair
+                if (end < length && Character.isHighSurrogate(data.charAt(end - 1))) {
+                    end--;
+                }
+                iris.classMethodStatusCode(DATA_OBJECT_CLASS, "WriteChunk", stream, data.substring(start, end),
+                        false);
+                start = end;
+            }
+        }
+        return stream;
+    }
+
+}
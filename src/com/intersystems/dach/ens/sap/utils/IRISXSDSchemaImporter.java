@@ -1,38 +1,73 @@
 package com.intersystems.dach.ens.sap.utils;
 
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import com.intersystems.dach.utils.TraceManager;
-import com.intersystems.gateway.GatewayContext;
 import com.intersystems.jdbc.IRIS;
-
-// TODO make in objectscript
+import com.intersystems.jdbc.IRISList;
 
 /**
  * This class imports XSD schemas into the IRIS database and writes them to the
- * file.
+ * file. The files are written by a background thread and the import runs in a
+ * background job of the IRIS instance, so that the message processing is not
+ * blocked by new schemas. Schemas that are waiting for an import are
+ * collected and imported together.
  */
 public class IRISXSDSchemaImporter {
 
+    // ObjectScript class that runs the import job
+    private static final String IMPORTER_CLASS = "com.intersystems.dach.ens.sap.SchemaImporter";
+
+    // Extension of the marker file the import job writes when a file is imported
+    private static final String DONE_MARKER_EXTENSION = ".done";
+
+    // Content of the marker file for a successful import
+    private static final String DONE_MARKER_OK = "OK";
+
+    private static final long MARKER_POLL_INTERVAL_MS = 500;
+
+    // Imports without a marker after this time are reported as failed
+    private static final long IMPORT_TIMEOUT_MS = 10 * 60 * 1000;
+
     private static final SimpleDateFormat directoryTimestampFormat = new SimpleDateFormat("yyyyMMdd_HHmm");
     private Path xsdDirectoryPath = null;
-    private Collection<String> knownSchemas = null;
-    private Collection<String> incompleteSchemas = null;
     private boolean structureCreated;
     private TraceManager traceManager;
 
+    // Hashes of the schemas that have been submitted by schema ID, used to skip duplicates
+    private final Map<String, String> knownSchemas = new ConcurrentHashMap<String, String>();
+
+    // Schemas that have been written and wait for the import
+    private final Queue<PendingImport> writtenSchemas = new ConcurrentLinkedQueue<PendingImport>();
+
+    // Schemas that are imported by the IRIS job by schema ID and hash
+    private final Map<String, PendingImport> runningImports = new ConcurrentHashMap<String, PendingImport>();
+
+    // Finished imports that have not been reported yet
+    private final Queue<ImportResult> completedImports = new ConcurrentLinkedQueue<ImportResult>();
+
+    // Schemas that have been imported before, also by earlier runs
+    private final SchemaRegistry schemaRegistry;
+
+    private final ScheduledExecutorService executor;
+
     public IRISXSDSchemaImporter(String xsdDirectoryPath, TraceManager traceManager) throws IOException {
-        this.knownSchemas = new ArrayList<String>();
-        this.incompleteSchemas = new ArrayList<String>();
         this.structureCreated = false;
         this.traceManager = traceManager;
 
@@ -44,6 +79,9 @@ public class IRISXSDSchemaImporter {
             throw new IOException("Path is not a writeable: " + baseDirPath);
         }
 
+        this.schemaRegistry = new SchemaRegistry(baseDirPath.resolve(SchemaRegistry.INDEX_FILE_NAME));
+        trace("Loaded " + schemaRegistry.size() + " known XSD schema(s) from the registry.");
+
         Timestamp timestamp = new Timestamp(System.currentTimeMillis());
         String folderNamePrefix = directoryTimestampFormat.format(timestamp);
         String folderNameSuffix = "";
@@ -56,6 +94,14 @@ public class IRISXSDSchemaImporter {
             index++;
         } while (Files.exists(xsdPath));
         this.xsdDirectoryPath = xsdPath;
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "XSD schema importer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::collectFinishedImports, MARKER_POLL_INTERVAL_MS,
+                MARKER_POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -66,66 +112,257 @@ public class IRISXSDSchemaImporter {
     }
 
     /**
-     * Saves to XSD schema as file and imports it to the current IRIS instance.
-     * 
-     * @param schemaId  The Identifier of the XSD schema
-     * @param xsdSchema The XSD schama
-     * @return true if the schema was imported, false if the schema already exists.
+     * @return The number of schemas in the registry
      */
-    public boolean importSchemaIfNotExists(String schemaId, String xsdSchema, boolean complete)
-            throws IOException, IllegalStateException, IllegalArgumentException, RuntimeException {
+    public int getRegisteredSchemaCount() {
+        return schemaRegistry.size();
+    }
 
-        if (knownSchemas.contains(schemaId) && !incompleteSchemas.contains(schemaId)) {
+    /**
+     * Submit a XSD schema for the import. The schema is written to a file in the
+     * background, unless the same schema has already been imported. A changed
+     * schema of the same ID is submitted again. This method can be called from
+     * any thread.
+     *
+     * @param schemaId   The Identifier of the XSD schema
+     * @param schemaHash The hash of the XSD schema content
+     * @param xsdSchema  The XSD schama
+     * @return true if the schema was submitted, false if the schema already
+     *         exists or is being imported.
+     */
+    public boolean submitSchema(String schemaId, String schemaHash, String xsdSchema) {
+        String hash = schemaHash == null ? "" : schemaHash;
+        if (hash.equals(knownSchemas.put(schemaId, hash))) {
             return false;
         }
 
         if (xsdSchema == null || xsdSchema.isEmpty()) {
-            throw new IllegalArgumentException("Schema is null or empty.");
+            fail(schemaId, hash, "Schema is null or empty.");
+            return false;
         }
 
-        if (xsdDirectoryPath == null) {
-            throw new IllegalStateException("IRISXSDUtils has not been initialized.");
+        executor.execute(() -> writeSchema(schemaId, schemaHash, xsdSchema));
+        return true;
+    }
+
+    /**
+     * Start the import of all written schemas in a single IRIS call. This
+     * method must be called from the thread that owns the IRIS connection.
+     *
+     * @param iris The IRIS instance
+     * @return The number of schemas whose import has been started.
+     */
+    public int startImports(IRIS iris) throws IllegalStateException {
+        if (writtenSchemas.isEmpty()) {
+            return 0;
+        }
+        if (iris == null) {
+            throw new IllegalStateException("Could not get IRIS instance.");
         }
 
-        // Create directory if it does not exist
-        if (!this.structureCreated) {
-            Files.createDirectory(xsdDirectoryPath);
-            this.structureCreated = true;
-            trace("Created directory for XSD schemas: " + xsdDirectoryPath.toString());
+        List<PendingImport> batch = new ArrayList<PendingImport>();
+        IRISList files = new IRISList();
+        PendingImport pendingImport;
+        while ((pendingImport = writtenSchemas.poll()) != null) {
+            batch.add(pendingImport);
+            files.add(pendingImport.file.toString());
         }
 
-        // Write schema to file
-        Path xsdFilePath = Paths.get(xsdDirectoryPath.toString(), schemaId + ".xsd");
-        File file = xsdFilePath.toFile();
-        FileWriter writer = new FileWriter(file);
-        writer.write(xsdSchema);
-        writer.close();
-        trace("Writing XSD schema to file: " + schemaId + ".xsd");
+        long now = System.currentTimeMillis();
+        for (PendingImport started : batch) {
+            started.startedMs = now;
+            runningImports.put(started.getKey(), started);
+        }
+        try {
+            iris.classMethodStatusCode(IMPORTER_CLASS, "ImportAsync", files);
+        } catch (RuntimeException e) {
+            for (PendingImport failed : batch) {
+                runningImports.remove(failed.getKey());
+                fail(failed.schemaId, failed.hash, e.getMessage());
+            }
+            return 0;
+        }
 
-        // Import schema to iris
-        IRIS iris = GatewayContext.getIRIS();
-        if (iris == null) {
-            throw new IllegalStateException("Could not get IRIS instance.");
+        trace("Started import of " + batch.size() + " XSD schema(s).");
+        return batch.size();
+    }
+
+    /**
+     * Get the next finished import.
+     *
+     * @return The result of the import or null if no import has finished.
+     */
+    public ImportResult pollCompletedImport() {
+        return completedImports.poll();
+    }
+
+    /**
+     * Stop the background thread. Running IRIS jobs are not affected.
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Write a schema to its file and queue it for the import. Every hash gets
+     * its own folder, so a changed schema does not overwrite the file of a
+     * running import and the file name still gives the schema category.
+     *
+     * @param schemaId  The Identifier of the XSD schema
+     * @param hash      The hash of the XSD schema content
+     * @param xsdSchema The XSD schama
+     */
+    private void writeSchema(String schemaId, String hash, String xsdSchema) {
+        if (schemaRegistry.isRegistered(schemaId, hash)) {
+            trace("XSD schema is already imported: " + schemaId + ".xsd");
+            return;
         }
-        iris.classMethodStatusCode("EnsLib.EDI.XML.SchemaXSD", "Import", xsdFilePath.toString());
 
-        trace("Imported XSD schema to IRIS: " + schemaId + ".xsd");
+        try {
+            // Create directory if it does not exist
+            if (!this.structureCreated) {
+                Files.createDirectory(xsdDirectoryPath);
+                this.structureCreated = true;
+                trace("Created directory for XSD schemas: " + xsdDirectoryPath.toString());
+            }
 
-        knownSchemas.add(schemaId);
+            // Write schema to file
+            Path xsdFolderPath = hash == null || hash.isEmpty() ? xsdDirectoryPath
+                    : xsdDirectoryPath.resolve(hash);
+            Files.createDirectories(xsdFolderPath);
+            Path xsdFilePath = xsdFolderPath.resolve(schemaId + ".xsd");
+            try (Writer writer = Files.newBufferedWriter(xsdFilePath, StandardCharsets.UTF_8)) {
+                writer.write(xsdSchema);
+            }
+            trace("Writing XSD schema to file: " + xsdDirectoryPath.relativize(xsdFilePath));
 
-        if (!complete) {
-            incompleteSchemas.add(schemaId);
+            writtenSchemas.add(new PendingImport(schemaId, hash, xsdFilePath));
+        } catch (IOException e) {
+            fail(schemaId, hash, e.getMessage());
         }
+    }
 
-        return true;
+    /**
+     * Check the marker files of the running imports. Imports that have not
+     * written a marker within the timeout are reported as failed, for example
+     * if the IRIS job has been terminated.
+     */
+    private void collectFinishedImports() {
+        long now = System.currentTimeMillis();
+        for (PendingImport runningImport : runningImports.values()) {
+            Path marker = Paths.get(runningImport.file.toString() + DONE_MARKER_EXTENSION);
+            try {
+                if (!Files.exists(marker)) {
+                    if (now - runningImport.startedMs > IMPORT_TIMEOUT_MS) {
+                        runningImports.remove(runningImport.getKey());
+                        fail(runningImport.schemaId, runningImport.hash,
+                                "Import did not finish within " + (IMPORT_TIMEOUT_MS / 1000) + " seconds.");
+                    }
+                    continue;
+                }
+                String status = new String(Files.readAllBytes(marker), StandardCharsets.UTF_8).trim();
+                if (status.isEmpty()) {
+                    // the marker is still being written
+                    continue;
+                }
+                Files.deleteIfExists(marker);
+                runningImports.remove(runningImport.getKey());
+
+                if (DONE_MARKER_OK.equals(status)) {
+                    trace("Imported XSD schema to IRIS: " + runningImport.schemaId + ".xsd");
+                    try {
+                        schemaRegistry.register(runningImport.schemaId, runningImport.hash);
+                    } catch (IOException e) {
+                        trace("Could not register XSD schema " + runningImport.schemaId + ": " + e.getMessage());
+                    }
+                    completedImports.add(new ImportResult(runningImport.schemaId, true, null));
+                } else {
+                    fail(runningImport.schemaId, runningImport.hash, status);
+                }
+            } catch (IOException e) {
+                runningImports.remove(runningImport.getKey());
+                fail(runningImport.schemaId, runningImport.hash, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Report a failed import. The schema is submitted again with the next
+     * message of the function.
+     *
+     * @param schemaId The Identifier of the XSD schema
+     * @param hash     The hash of the XSD schema content
+     * @param message  The error message
+     */
+    private void fail(String schemaId, String hash, String message) {
+        knownSchemas.remove(schemaId, hash == null ? "" : hash);
+        completedImports.add(new ImportResult(schemaId, false, message));
     }
 
     /**
      * Trace a message.
-     * 
+     *
      * @param msg The message to trace
      */
     private void trace(String msg) {
-        traceManager.traceMessage(msg);
+        traceManager.trace(TraceManager.Category.SCHEMA, TraceManager.Level.INFO, msg);
+    }
+
+    /**
+     * A schema that has been written to a file.
+     */
+    private static final class PendingImport {
+
+        private final String schemaId;
+        private final String hash;
+        private final Path file;
+        private long startedMs;
+
+        private PendingImport(String schemaId, String hash, Path file) {
+            this.schemaId = schemaId;
+            this.hash = hash;
+            this.file = file;
+        }
+
+        private String getKey() {
+            return schemaId + "/" + hash;
+        }
+    }
+
+    /**
+     * The result of a schema import.
+     */
+    public static final class ImportResult {
+
+        private final String schemaId;
+        private final boolean successful;
+        private final String message;
+
+        private ImportResult(String schemaId, boolean successful, String message) {
+            this.schemaId = schemaId;
+            this.successful = successful;
+            this.message = message;
+        }
+
+        /**
+         * @return The Identifier of the XSD schema
+         */
+        public String getSchemaId() {
+            return schemaId;
+        }
+
+        /**
+         * @return true if the schema was imported, false if not
+         */
+        public boolean isSuccessful() {
+            return successful;
+        }
+
+        /**
+         * @return The error message of a failed import
+         */
+        public String getMessage() {
+            return message;
+        }
     }
 }
@@ -0,0 +1,270 @@
+package com.intersystems.dach.ens.sap.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.intersystems.dach.sap.SAPImportData;
+import com.intersystems.dach.sap.utils.XMLUtils;
+
+/**
+ * Combines the messages of the configured functions into a single message. The
+ * messages of a function are collected until the time window has passed since
+ * the first message or the size limit is reached. The combined message is a
+ * JSON array or a SAPBatch XML element that contains the collected documents
+ * in their order, without their XML declarations. The outcome of its
+ * processing is passed on to all collected messages.
+ *
+ * Messages of other functions are passed through. The aggregator takes the
+ * messages from the import data queue and must only be used by a single
+ * thread.
+ */
+public class ImportDataAggregator {
+
+    private final ImportDataQueue importDataQueue;
+    private final Set<String> functions;
+    private final int maxMessages;
+    private final long maxBytes;
+    private final long windowNs;
+
+    // Collected messages by function name
+    private final Map<String, Batch> batches = new HashMap<String, Batch>();
+
+    /**
+     * Create a new aggregator.
+     *
+     * @param importDataQueue The queue to take the messages from.
+     * @param functions       The functions whose messages are combined.
+     * @param maxMessages     The maximum number of messages in a batch.
+     * @param maxBytes        The maximum size of the data of a batch in bytes.
+     * @param windowMs        The time in milliseconds a batch collects messages.
+     */
+    public ImportDataAggregator(ImportDataQueue importDataQueue, Set<String> functions, int maxMessages,
+            long maxBytes, long windowMs) {
+        this.importDataQueue = importDataQueue;
+        this.functions = functions;
+        this.maxMessages = Math.max(1, maxMessages);
+        this.maxBytes = Math.max(1, maxBytes);
+        this.windowNs = Math.max(0, windowMs) * 1000000L;
+    }
+
+    /**
+     * Take the next message. This is either a message of a function that is not
+     * combined or a batch whose time window has passed or that is full.
+     *
+     * @return The message or null if there is none.
+     */
+    public SAPImportData poll() {
+        SAPImportData importData = pollDueBatch();
+        while (importData == null) {
+            SAPImportData next = importDataQueue.poll();
+            if (next == null) {
+                return null;
+            }
+            importData = add(next);
+        }
+        return importData;
+    }
+
+    /**
+     * Take the next message. If there is none, wait up to the timeout for a new
+     * message or for the time window of a batch to pass.
+     *
+     * @param timeoutMs The maximum time to wait in milliseconds.
+     * @return The message or null if there is none.
+     * @throws InterruptedException If the thread has been interrupted while
+     *                              waiting.
+     */
+    public SAPImportData poll(long timeoutMs) throws InterruptedException {
+        long deadlineNs = System.nanoTime() + timeoutMs * 1000000L;
+        while (true) {
+            SAPImportData importData = poll();
+            if (importData != null) {
+                return importData;
+            }
+            long nowNs = System.nanoTime();
+            long waitNs = deadlineNs - nowNs;
+            for (Batch batch : batches.values()) {
+                waitNs = Math.min(waitNs, batch.startNs + windowNs - nowNs);
+            }
+            if (deadlineNs - nowNs <= 0) {
+                return null;
+            }
+            SAPImportData next = importDataQueue.poll(Math.max(1, waitNs / 1000000L));
+            if (next != null) {
+                importData = add(next);
+                if (importData != null) {
+                    return importData;
+                }
+            }
+        }
+    }
+
+    /**
+     * Indicates if messages are collected.
+     *
+     * @return true if a batch has messages.
+     */
+    public boolean hasPendingMessages() {
+        return !batches.isEmpty();
+    }
+
+    /**
+     * Cancel all collected messages.
+     */
+    public void cancelPendingMessages() {
+        for (Batch batch : batches.values()) {
+            for (SAPImportData importData : batch.messages) {
+                importData.cancel();
+            }
+        }
+        batches.clear();
+    }
+
+    /**
+     * Add a message. Return it at once if its function is not combined or
+     * return the batch if it is full.
+     */
+    private SAPImportData add(SAPImportData importData) {
+        String functionName = importData.getFunctionName();
+        if (!functions.contains(functionName) || importData.isExpired()) {
+            return importData;
+        }
+        Batch batch = batches.get(functionName);
+        if (batch == null) {
+            batch = new Batch(importData.isJSON());
+            batches.put(functionName, batch);
+        } else if (batch.isJSON != importData.isJSON()) {
+            // the format has changed, the batch is passed on as it is
+            batches.remove(functionName);
+            SAPImportData previous = batch.combine(functionName);
+            batch = new Batch(importData.isJSON());
+            batch.add(importData);
+            batches.put(functionName, batch);
+            return previous;
+        }
+        batch.add(importData);
+        if (batch.messages.size() >= maxMessages || batch.bytes >= maxBytes) {
+            batches.remove(functionName);
+            return batch.combine(functionName);
+        }
+        return null;
+    }
+
+    /**
+     * Remove and return a batch whose time window has passed.
+     */
+    private SAPImportData pollDueBatch() {
+        long nowNs = System.nanoTime();
+        Iterator<Map.Entry<String, Batch>> iterator = batches.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Batch> entry = iterator.next();
+            if (nowNs - entry.getValue().startNs >= windowNs) {
+                iterator.remove();
+                SAPImportData combined = entry.getValue().combine(entry.getKey());
+                if (combined != null) {
+                    return combined;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static final class Batch {
+
+        private final List<SAPImportData> messages = new ArrayList<SAPImportData>();
+        private final boolean isJSON;
+        private final long startNs = System.nanoTime();
+        private long bytes;
+
+        private Batch(boolean isJSON) {
+            this.isJSON = isJSON;
+        }
+
+        private void add(SAPImportData importData) {
+            messages.add(importData);
+            String data = importData.getData();
+            bytes += data == null ? 0 : data.length();
+        }
+
+        /**
+         * Combine the messages whose caller is still waiting. A single message is
+         * returned as it is.
+         *
+         * @return The combined message or null if no message is left.
+         */
+        private SAPImportData combine(String functionName) {
+            List<SAPImportData> waiting = new ArrayList<SAPImportData>(messages.size());
+            for (SAPImportData importData : messages) {
+                if (importData.isExpired()) {
+                    importData.cancel();
+                } else {
+                    waiting.add(importData);
+                }
+            }
+            if (waiting.size() <= 1) {
+                return waiting.isEmpty() ? null : waiting.get(0);
+            }
+
+            StringBuilder sb = new StringBuilder((int) Math.min(Integer.MAX_VALUE - 64, bytes + 64));
+            if (isJSON) {
+                sb.append('[');
+            } else {
+                sb.append(XMLUtils.XMLHEADER).append("<SAPBatch function=\"");
+                XMLUtils.escape(sb, functionName, true);
+                sb.append("\" count=\"").append(waiting.size()).append("\">");
+            }
+            boolean first = true;
+            long deadlineNs = 0;
+            boolean hasDeadline = true;
+            for (SAPImportData importData : waiting) {
+                if (isJSON && !first) {
+                    sb.append(',');
+                }
+                if (isJSON) {
+                    sb.append(importData.getData());
+                } else {
+                    appendWithoutDeclaration(sb, importData.getData());
+                }
+                first = false;
+
+                // The batch expires when no caller waits anymore
+                long deadline = importData.getDeadline();
+                if (deadline == 0) {
+                    hasDeadline = false;
+                } else if (deadlineNs == 0 || deadline - deadlineNs > 0) {
+                    deadlineNs = deadline;
+                }
+            }
+            sb.append(isJSON ? "]" : "</SAPBatch>");
+
+            SAPImportData combined = SAPImportData.combine(functionName, sb.toString(), isJSON, waiting);
+            if (hasDeadline) {
+                combined.setDeadline(deadlineNs);
+            }
+            return combined;
+        }
+
+        /**
+         * Append a XML document without its XML declaration, the batch has a
+         * single declaration.
+         */
+        private static void appendWithoutDeclaration(StringBuilder sb, String xml) {
+            int start = 0;
+            if (xml.startsWith("<?xml")) {
+                int end = xml.indexOf("?>");
+                if (end >= 0) {
+                    start = end + 2;
+                    while (start < xml.length() && Character.isWhitespace(xml.charAt(start))) {
+                        start++;
+                    }
+                }
+            }
+            sb.append(xml, start, xml.length());
+        }
+    }
+
+}
@@ -0,0 +1,457 @@
+package com.intersystems.dach.ens.sap.utils;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.intersystems.dach.sap.SAPImportData;
+
+/**
+ * A queue for the import data of the InboundAdapter that is bounded by the
+ * number of messages and by the size of their payload. The depth of the queue
+ * is tracked, so it can be read in constant time.
+ *
+ * Every function has its own lane, the messages of a function keep their
+ * order. The lanes are served in a weighted round robin, a lane with weight n
+ * gives up to n messages in turn. The lanes of priority functions are served
+ * before all other lanes.
+ *
+ * If a payload buffer pool is set, the data is kept as UTF-8 bytes outside of
+ * the heap while it is queued.
+ *
+ * If a spill store is set, the data of messages beyond the memory budget is
+ * moved to the spill store and read back when the message is taken from the
+ * queue. The data is also moved if the usage of the heap crosses the memory
+ * threshold.
+ */
+public class ImportDataQueue {
+
+    private final int maxSize;
+    private final long maxBytes;
+
+    // Lanes by function name and the lanes that have messages, in serving order
+    private final Map<String, Lane> lanes = new HashMap<String, Lane>();
+    private final ArrayDeque<Lane> priorityLanes = new ArrayDeque<Lane>();
+    private final ArrayDeque<Lane> activeLanes = new ArrayDeque<Lane>();
+
+    // Scheduling
+    private Map<String, Integer> weights = Collections.emptyMap();
+    private int defaultWeight = 1;
+    private Set<String> priorityFunctions = Collections.emptySet();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition notEmpty = lock.newCondition();
+
+    private volatile int size;
+    private volatile long bytes;
+
+    // Off-heap data
+    private PayloadBufferPool payloadPool;
+
+    // Spill-over
+    private ImportDataSpillStore spillStore;
+    private long memoryBudgetBytes;
+    private MemoryPoolMXBean heapPool;
+    private long heapThresholdBytes;
+    private volatile long memoryBytes;
+    private volatile int spilledCount;
+    private final AtomicInteger spillErrorCount = new AtomicInteger();
+
+    /**
+     * Create a new queue.
+     *
+     * @param maxSize  The maximum number of messages.
+     * @param maxBytes The maximum size of the payload of all messages in bytes.
+     */
+    public ImportDataQueue(int maxSize, long maxBytes) {
+        this.maxSize = Math.max(1, maxSize);
+        this.maxBytes = Math.max(1, maxBytes);
+    }
+
+    /**
+     * Configure the serving order of the functions. Must be called before data
+     * is added.
+     *
+     * @param weights           The weights by function name, a lane with weight n
+     *                          gives up to n messages in turn.
+     * @param defaultWeight     The weight of all other functions.
+     * @param priorityFunctions The functions that are served before all other
+     *                          functions.
+     */
+    public void configureScheduling(Map<String, Integer> weights, int defaultWeight, Set<String> priorityFunctions) {
+        lock.lock();
+        try {
+            this.weights = new HashMap<String, Integer>(weights);
+            this.defaultWeight = Math.max(1, defaultWeight);
+            this.priorityFunctions = priorityFunctions;
+            lanes.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Keep the data of queued messages in the buffers of a pool outside of the
+     * heap.
+     *
+     * @param payloadPool The buffer pool.
+     */
+    public void enableOffHeap(PayloadBufferPool payloadPool) {
+        this.payloadPool = payloadPool;
+    }
+
+    /**
+     * Keep the data of messages beyond the memory budget in a spill store.
+     *
+     * @param spillStore             The spill store.
+     * @param memoryBudgetBytes      The maximum size of the payload that is kept
+     *                               in memory in bytes.
+     * @param memoryThresholdPercent The usage of the heap in percent from which
+     *                               on all data is moved to the spill store, 0 to
+     *                               disable.
+     */
+    public void enableSpillOver(ImportDataSpillStore spillStore, long memoryBudgetBytes,
+            int memoryThresholdPercent) {
+        this.spillStore = spillStore;
+        this.memoryBudgetBytes = Math.max(0, memoryBudgetBytes);
+        if (memoryThresholdPercent > 0) {
+            this.heapPool = findHeapPool();
+            if (heapPool != null) {
+                this.heapThresholdBytes = heapPool.getUsage().getMax() / 100 * Math.min(100, memoryThresholdPercent);
+            }
+        }
+    }
+
+    /**
+     * Add import data to the queue. If the queue is full, wait up to the timeout
+     * for free space. A message that is larger than the byte limit is only added
+     * to an empty queue.
+     *
+     * @param importData The import data.
+     * @param timeoutMs  The maximum time to wait in milliseconds, 0 to return at
+     *                   once.
+     * @return true if the data has been added, false if the queue is still full.
+     * @throws InterruptedException If the thread has been interrupted while
+     *                              waiting.
+     */
+    public boolean offer(SAPImportData importData, long timeoutMs) throws InterruptedException {
+        String data = importData.getData();
+        long dataBytes = sizeOf(data);
+        ImportDataSpillStore.Handle handle = null;
+        PayloadBufferPool.Payload payload = null;
+        if (isSpillNeeded(dataBytes)) {
+            byte[] dataUTF8 = data.getBytes(StandardCharsets.UTF_8);
+            try {
+                handle = spillStore.write(dataUTF8);
+            } catch (IOException e) {
+                // keep the data in memory
+                spillErrorCount.incrementAndGet();
+            }
+            if (handle != null) {
+                dataBytes = dataUTF8.length;
+                importData.detachData();
+            }
+        }
+        if (handle == null && payloadPool != null && data != null) {
+            payload = payloadPool.store(data);
+            dataBytes = payload.getStoredBytes();
+            importData.detachData();
+        }
+
+        long remainingNs = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        lock.lockInterruptibly();
+        try {
+            while (isFull(dataBytes)) {
+                if (remainingNs <= 0) {
+                    break;
+                }
+                remainingNs = notFull.awaitNanos(remainingNs);
+            }
+            if (!isFull(dataBytes)) {
+                importData.markStage(SAPImportData.Stage.ENQUEUED);
+                Lane lane = getLane(importData.getFunctionName());
+                if (lane.entries.isEmpty()) {
+                    (lane.priority ? priorityLanes : activeLanes).add(lane);
+                }
+                lane.entries.add(new Entry(importData, handle, payload, dataBytes));
+                size++;
+                bytes += dataBytes;
+                if (handle == null) {
+                    memoryBytes += dataBytes;
+                } else {
+                    spilledCount++;
+                }
+                notEmpty.signal();
+                return true;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // The data has not been queued
+        if (handle != null) {
+            spillStore.release(handle);
+            importData.attachData(data);
+        }
+        if (payload != null) {
+            payloadPool.discard(payload);
+            importData.attachData(data);
+        }
+        return false;
+    }
+
+    /**
+     * Remove the next import data from the queue. Data that has been kept outside
+     * of the heap is read back as UTF-8 bytes, unless the import data has expired
+     * and will not be processed.
+     *
+     * @return The import data or null if the queue is empty.
+     */
+    public SAPImportData poll() {
+        if (size == 0) {
+            return null;
+        }
+        Entry entry;
+        lock.lock();
+        try {
+            entry = nextEntry();
+            if (entry == null) {
+                return null;
+            }
+            size--;
+            bytes -= entry.bytes;
+            if (entry.handle == null) {
+                memoryBytes -= entry.bytes;
+            } else {
+                spilledCount--;
+            }
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        entry.importData.markStage(SAPImportData.Stage.DEQUEUED);
+        if (entry.importData.isExpired()) {
+            // The data is not needed anymore
+            if (entry.handle != null) {
+                spillStore.release(entry.handle);
+            } else if (entry.payload != null) {
+                payloadPool.discard(entry.payload);
+            }
+        } else if (entry.handle != null) {
+            entry.importData.attachData(spillStore.read(entry.handle));
+        } else if (entry.payload != null) {
+            entry.importData.attachData(payloadPool.load(entry.payload));
+        }
+        return entry.importData;
+    }
+
+    /**
+     * Remove the next import data from the queue. If the queue is empty, wait up
+     * to the timeout for new data.
+     *
+     * @param timeoutMs The maximum time to wait in milliseconds.
+     * @return The import data or null if the queue is still empty.
+     * @throws InterruptedException If the thread has been interrupted while
+     *                              waiting.
+     */
+    public SAPImportData poll(long timeoutMs) throws InterruptedException {
+        long remainingNs = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                if (remainingNs <= 0) {
+                    return null;
+                }
+                remainingNs = notEmpty.awaitNanos(remainingNs);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return poll();
+    }
+
+    /**
+     * @return The number of messages in the queue.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The size of the payload of all messages in the queue in bytes.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return The time in {@link System#nanoTime()} at which the oldest message
+     *         has been queued or 0 if the queue is empty.
+     */
+    public long getOldestEnqueueTime() {
+        if (size == 0) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            long oldest = 0;
+            for (ArrayDeque<Lane> serving : Arrays.asList(priorityLanes, activeLanes)) {
+                for (Lane lane : serving) {
+                    long enqueued = lane.entries.peek().importData.getStageTime(SAPImportData.Stage.ENQUEUED);
+                    if (oldest == 0 || enqueued - oldest < 0) {
+                        oldest = enqueued;
+                    }
+                }
+            }
+            return oldest;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of messages whose data is in the spill store.
+     */
+    public int getSpilledCount() {
+        return spilledCount;
+    }
+
+    /**
+     * @return The number of messages that have been kept in memory, because
+     *         their data could not be written to the spill store.
+     */
+    public int getSpillErrorCount() {
+        return spillErrorCount.get();
+    }
+
+    /**
+     * @return true if there is no message in the queue.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Take the next entry in serving order. A lane stays at the head until it has
+     * given as many messages as its weight or is empty.
+     */
+    private Entry nextEntry() {
+        ArrayDeque<Lane> serving = priorityLanes.isEmpty() ? activeLanes : priorityLanes;
+        Lane lane = serving.peek();
+        if (lane == null) {
+            return null;
+        }
+        if (lane.deficit <= 0) {
+            lane.deficit = lane.weight;
+        }
+        Entry entry = lane.entries.poll();
+        lane.deficit--;
+        if (lane.entries.isEmpty()) {
+            serving.poll();
+            lane.deficit = 0;
+        } else if (lane.deficit <= 0) {
+            serving.add(serving.poll());
+        }
+        return entry;
+    }
+
+    private Lane getLane(String functionName) {
+        Lane lane = lanes.get(functionName);
+        if (lane == null) {
+            Integer weight = weights.get(functionName);
+            lane = new Lane(weight == null ? defaultWeight : Math.max(1, weight),
+                    priorityFunctions.contains(functionName));
+            lanes.put(functionName, lane);
+        }
+        return lane;
+    }
+
+    private boolean isFull(long dataBytes) {
+        if (size == 0) {
+            return false;
+        }
+        return size >= maxSize || bytes + dataBytes > maxBytes;
+    }
+
+    private boolean isSpillNeeded(long dataBytes) {
+        if (spillStore == null || dataBytes == 0) {
+            return false;
+        }
+        if (memoryBytes + dataBytes > memoryBudgetBytes) {
+            return true;
+        }
+        return heapPool != null && heapPool.getUsage().getUsed() > heapThresholdBytes;
+    }
+
+    /**
+     * Find the heap pool of long living objects. It is the only heap pool that
+     * supports a usage threshold. The threshold itself is not set, because the
+     * pool is shared by everything that runs in the Java server.
+     */
+    private static MemoryPoolMXBean findHeapPool() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP || !pool.isUsageThresholdSupported()) {
+                continue;
+            }
+            long max = pool.getUsage().getMax();
+            if (max <= 0) {
+                continue;
+            }
+            return pool;
+        }
+        return null;
+    }
+
+    /**
+     * Estimate the size of the payload. Strings are stored with two bytes per
+     * character at most.
+     */
+    private static long sizeOf(String data) {
+        return data == null ? 0 : 2L * data.length();
+    }
+
+    private static final class Lane {
+
+        private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+        private final int weight;
+        private final boolean priority;
+
+        // The number of messages the lane may still give in its turn
+        private int deficit;
+
+        private Lane(int weight, boolean priority) {
+            this.weight = weight;
+            this.priority = priority;
+        }
+    }
+
+    private static final class Entry {
+
+        private final SAPImportData importData;
+        private final ImportDataSpillStore.Handle handle;
+        private final PayloadBufferPool.Payload payload;
+        private final long bytes;
+
+        private Entry(SAPImportData importData, ImportDataSpillStore.Handle handle,
+                PayloadBufferPool.Payload payload, long bytes) {
+            this.importData = importData;
+            this.handle = handle;
+            this.payload = payload;
+            this.bytes = bytes;
+        }
+    }
+
+}
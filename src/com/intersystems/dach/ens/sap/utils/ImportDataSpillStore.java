@@ -0,0 +1,209 @@
+package com.intersystems.dach.ens.sap.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+
+/**
+ * Keeps the data of queued messages outside of the heap. The data is appended
+ * to memory-mapped segment files. A segment is recycled when all of its data
+ * has been read back. The store is not durable, the segment files of a previous
+ * run are deleted when the store is opened.
+ */
+public class ImportDataSpillStore implements Closeable {
+
+    private static final String SEGMENT_SUFFIX = ".spill";
+
+    // Consumed segments that are kept for reuse, further segments are deleted
+    private static final int MAX_FREE_SEGMENTS = 4;
+
+    private final Path directory;
+    private final int segmentSize;
+
+    private final ArrayDeque<Segment> freeSegments = new ArrayDeque<Segment>();
+    private Segment currentSegment;
+    private int segmentCounter;
+    private int segmentCount;
+    private boolean closed;
+
+    /**
+     * A reference to data in the store.
+     */
+    public static final class Handle {
+
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+
+        private Handle(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Open a store in the given directory.
+     *
+     * @param directoryPath The directory for the segment files.
+     * @param segmentSize   The size of a segment file in bytes.
+     * @throws IOException If the directory can't be created.
+     */
+    public ImportDataSpillStore(String directoryPath, int segmentSize) throws IOException {
+        this.directory = Paths.get(directoryPath);
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+
+        // Remove the segments of a previous run
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * Append data to the store.
+     *
+     * @param data The data.
+     * @return The handle of the data or null if the data is larger than a segment.
+     * @throws IOException If a segment file can't be created.
+     */
+    public synchronized Handle write(byte[] data) throws IOException {
+        if (closed) {
+            throw new IOException("Spill store is closed.");
+        }
+        if (data.length > segmentSize) {
+            return null;
+        }
+        if (currentSegment == null || segmentSize - currentSegment.writePosition < data.length) {
+            Segment previous = currentSegment;
+            currentSegment = nextSegment();
+            if (previous != null) {
+                previous.sealed = true;
+                if (previous.liveCount == 0) {
+                    recycle(previous);
+                }
+            }
+        }
+
+        Segment segment = currentSegment;
+        int offset = segment.writePosition;
+        ByteBuffer target = segment.buffer.duplicate();
+        target.position(offset);
+        target.put(data);
+        segment.writePosition += data.length;
+        segment.liveCount++;
+        return new Handle(segment, offset, data.length);
+    }
+
+    /**
+     * Read data back from the store and release it. The handle must not be used
+     * again.
+     *
+     * @param handle The handle of the data.
+     * @return The data.
+     */
+    public synchronized byte[] read(Handle handle) {
+        byte[] data = new byte[handle.length];
+        ByteBuffer source = handle.segment.buffer.duplicate();
+        source.position(handle.offset);
+        source.get(data);
+        release(handle);
+        return data;
+    }
+
+    /**
+     * Release data without reading it.
+     *
+     * @param handle The handle of the data.
+     */
+    public synchronized void release(Handle handle) {
+        Segment segment = handle.segment;
+        segment.liveCount--;
+        if (segment.liveCount == 0) {
+            if (segment.sealed) {
+                recycle(segment);
+            } else {
+                // nothing is left in the current segment, start over
+                segment.writePosition = 0;
+            }
+        }
+    }
+
+    /**
+     * @return The number of segment files.
+     */
+    public synchronized int getSegmentCount() {
+        return segmentCount;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (currentSegment != null) {
+            delete(currentSegment);
+            currentSegment = null;
+        }
+        while (!freeSegments.isEmpty()) {
+            delete(freeSegments.poll());
+        }
+    }
+
+    private Segment nextSegment() throws IOException {
+        Segment segment = freeSegments.poll();
+        if (segment != null) {
+            return segment;
+        }
+        Path path = directory.resolve("segment-" + (++segmentCounter) + SEGMENT_SUFFIX);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // the mapping stays valid after the channel has been closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            segmentCount++;
+            return new Segment(path, buffer);
+        }
+    }
+
+    private void recycle(Segment segment) {
+        segment.sealed = false;
+        segment.writePosition = 0;
+        if (freeSegments.size() < MAX_FREE_SEGMENTS) {
+            freeSegments.add(segment);
+        } else {
+            delete(segment);
+        }
+    }
+
+    private void delete(Segment segment) {
+        segmentCount--;
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            // a mapped file can't be deleted on every platform, it is deleted with the next start
+        }
+    }
+
+    private static final class Segment {
+
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private int writePosition;
+        private int liveCount;
+        private boolean sealed;
+
+        private Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+}
@@ -0,0 +1,153 @@
+package com.intersystems.dach.ens.sap.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies that can be recorded by any number of threads
+ * without locking. The latencies are counted in buckets whose width grows with
+ * the latency, so that every value is kept with a precision of about 6 percent
+ * up to about 12 days.
+ */
+public class LatencyHistogram {
+
+    // Every power of two is divided into 16 buckets
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    // The largest power of two of a latency in microseconds
+    private static final int MAX_EXPONENT = 40;
+
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT * (MAX_EXPONENT - SUB_BUCKET_BITS + 2);
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumUs = new AtomicLong();
+    private final AtomicLong maxUs = new AtomicLong();
+
+    /**
+     * The values of a histogram at a point in time. All latencies are in
+     * microseconds.
+     */
+    public static final class Snapshot {
+
+        private final long count;
+        private final long meanUs;
+        private final long p50Us;
+        private final long p90Us;
+        private final long p99Us;
+        private final long maxUs;
+
+        private Snapshot(long count, long meanUs, long p50Us, long p90Us, long p99Us, long maxUs) {
+            this.count = count;
+            this.meanUs = meanUs;
+            this.p50Us = p50Us;
+            this.p90Us = p90Us;
+            this.p99Us = p99Us;
+            this.maxUs = maxUs;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanUs() {
+            return meanUs;
+        }
+
+        public long getP50Us() {
+            return p50Us;
+        }
+
+        public long getP90Us() {
+            return p90Us;
+        }
+
+        public long getP99Us() {
+            return p99Us;
+        }
+
+        public long getMaxUs() {
+            return maxUs;
+        }
+    }
+
+    /**
+     * Record a latency.
+     *
+     * @param latencyNs The latency in nanoseconds.
+     */
+    public void record(long latencyNs) {
+        long valueUs = Math.max(0, latencyNs / 1000);
+        counts.incrementAndGet(bucketIndex(valueUs));
+        count.incrementAndGet();
+        sumUs.addAndGet(valueUs);
+
+        long max = maxUs.get();
+        while (valueUs > max && !maxUs.compareAndSet(max, valueUs)) {
+            max = maxUs.get();
+        }
+    }
+
+    /**
+     * Take a snapshot of the histogram. While latencies are recorded, the values
+     * of the snapshot may be off by the latencies recorded in the meantime.
+     *
+     * @return The snapshot.
+     */
+    public Snapshot snapshot() {
+        long[] bucketCounts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            bucketCounts[i] = counts.get(i);
+            total += bucketCounts[i];
+        }
+        long max = maxUs.get();
+        if (total == 0) {
+            return new Snapshot(0, 0, 0, 0, 0, 0);
+        }
+        return new Snapshot(total,
+                sumUs.get() / Math.max(1, count.get()),
+                percentile(bucketCounts, total, 50, max),
+                percentile(bucketCounts, total, 90, max),
+                percentile(bucketCounts, total, 99, max),
+                max);
+    }
+
+    /**
+     * Get the highest value of the bucket that contains the given percentile.
+     */
+    private static long percentile(long[] bucketCounts, long total, int percent, long max) {
+        long rank = (total * percent + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < bucketCounts.length; i++) {
+            seen += bucketCounts[i];
+            if (seen >= rank) {
+                return Math.min(lowestValue(i + 1) - 1, max);
+            }
+        }
+        return max;
+    }
+
+    private static int bucketIndex(long valueUs) {
+        if (valueUs < SUB_BUCKET_COUNT) {
+            return (int) valueUs;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(valueUs);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (valueUs >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKET_COUNT;
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long lowestValue(int bucketIndex) {
+        if (bucketIndex < SUB_BUCKET_COUNT) {
+            return bucketIndex;
+        }
+        int exponent = bucketIndex / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        int subBucket = bucketIndex % SUB_BUCKET_COUNT;
+        return (long) (SUB_BUCKET_COUNT + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+}
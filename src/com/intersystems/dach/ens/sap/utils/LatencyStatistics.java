@@ -0,0 +1,202 @@
+package com.intersystems.dach.ens.sap.utils;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.intersystems.dach.sap.SAPImportData;
+import com.intersystems.dach.sap.SAPImportData.Stage;
+
+/**
+ * Collects latency histograms and throughput counters per function. For every
+ * stage of the handling the time since the previous stage is recorded, as well
+ * as the total time from the receipt to the confirmation of a message.
+ */
+public class LatencyStatistics {
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final Map<String, FunctionStatistics> functions = new ConcurrentHashMap<String, FunctionStatistics>();
+
+    // Values of the previous summary, to calculate the throughput
+    private long lastSummaryNs = System.nanoTime();
+    private final Map<String, Long> lastProcessedCounts = new HashMap<String, Long>();
+
+    /**
+     * Count a message that has been queued.
+     *
+     * @param functionName The name of the function.
+     */
+    public void recordQueued(String functionName) {
+        getFunction(functionName).queued.incrementAndGet();
+    }
+
+    /**
+     * Count a message that has been processed and record its latencies. The
+     * messages of a batch are recorded one by one.
+     *
+     * @param importData The processed import data.
+     */
+    public void recordProcessed(SAPImportData importData) {
+        if (!importData.getBatch().isEmpty()) {
+            for (SAPImportData batchData : importData.getBatch()) {
+                recordProcessed(batchData);
+            }
+            return;
+        }
+
+        FunctionStatistics statistics = getFunction(importData.getFunctionName());
+        statistics.processed.incrementAndGet();
+
+        long previousNs = 0;
+        for (Stage stage : STAGES) {
+            long stageNs = importData.getStageTime(stage);
+            if (stageNs == 0) {
+                continue;
+            }
+            if (previousNs != 0) {
+                statistics.stages[stage.ordinal()].record(stageNs - previousNs);
+            }
+            previousNs = stageNs;
+        }
+
+        long receivedNs = importData.getStageTime(Stage.RECEIVED);
+        long confirmedNs = importData.getStageTime(Stage.CONFIRMED);
+        if (receivedNs != 0 && confirmedNs != 0) {
+            statistics.total.record(confirmedNs - receivedNs);
+        }
+    }
+
+    /**
+     * Count a message whose processing failed.
+     *
+     * @param importData The import data that could not be processed.
+     */
+    public void recordFailed(SAPImportData importData) {
+        getFunction(importData.getFunctionName()).failed.addAndGet(importData.getBatchCount());
+    }
+
+    /**
+     * Count a message that has been discarded, because its caller no longer
+     * waited for the processing.
+     *
+     * @param importData The import data that has been discarded.
+     */
+    public void recordExpired(SAPImportData importData) {
+        getFunction(importData.getFunctionName()).expired.addAndGet(importData.getBatchCount());
+    }
+
+    /**
+     * Get the counters and latencies of all functions as a JSON object. The
+     * latencies are in microseconds.
+     *
+     * @return The JSON object.
+     */
+    public String toJSON() {
+        StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String, FunctionStatistics> entry : new TreeMap<String, FunctionStatistics>(functions)
+                .entrySet()) {
+            FunctionStatistics statistics = entry.getValue();
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            sb.append('"').append(entry.getKey()).append("\":{");
+            sb.append("\"queued\":").append(statistics.queued.get());
+            sb.append(",\"processed\":").append(statistics.processed.get());
+            sb.append(",\"failed\":").append(statistics.failed.get());
+            sb.append(",\"expired\":").append(statistics.expired.get());
+            sb.append(",\"latency\":{");
+            appendJSON(sb, "TOTAL", statistics.total.snapshot());
+            for (Stage stage : STAGES) {
+                LatencyHistogram.Snapshot snapshot = statistics.stages[stage.ordinal()].snapshot();
+                if (snapshot.getCount() > 0) {
+                    sb.append(',');
+                    appendJSON(sb, stage.name(), snapshot);
+                }
+            }
+            sb.append("}}");
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Get a summary of all functions with their throughput since the previous
+     * summary and their total latency since the start.
+     *
+     * @return The summary.
+     */
+    public synchronized String summarize() {
+        long nowNs = System.nanoTime();
+        double seconds = Math.max(1, nowNs - lastSummaryNs) / 1000000000.0;
+        lastSummaryNs = nowNs;
+
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, FunctionStatistics> entry : new TreeMap<String, FunctionStatistics>(functions)
+                .entrySet()) {
+            FunctionStatistics statistics = entry.getValue();
+            long processed = statistics.processed.get();
+            Long lastProcessed = lastProcessedCounts.put(entry.getKey(), processed);
+            long processedSince = processed - (lastProcessed == null ? 0 : lastProcessed);
+            LatencyHistogram.Snapshot total = statistics.total.snapshot();
+
+            if (sb.length() > 0) {
+                sb.append("; ");
+            }
+            sb.append(entry.getKey()).append(": ")
+                    .append(processed).append(" processed (")
+                    .append(String.format(Locale.ROOT, "%.1f", processedSince / seconds)).append("/s), ")
+                    .append(statistics.failed.get()).append(" failed");
+            if (statistics.expired.get() > 0) {
+                sb.append(", ").append(statistics.expired.get()).append(" expired");
+            }
+            if (total.getCount() > 0) {
+                sb.append(", total p50/p90/p99/max ")
+                        .append(String.format(Locale.ROOT, "%.1f/%.1f/%.1f/%.1f ms", total.getP50Us() / 1000.0,
+                                total.getP90Us() / 1000.0, total.getP99Us() / 1000.0, total.getMaxUs() / 1000.0));
+            }
+        }
+        return sb.toString();
+    }
+
+    private FunctionStatistics getFunction(String functionName) {
+        FunctionStatistics statistics = functions.get(functionName);
+        if (statistics == null) {
+            functions.putIfAbsent(functionName, new FunctionStatistics());
+            statistics = functions.get(functionName);
+        }
+        return statistics;
+    }
+
+    private static void appendJSON(StringBuilder sb, String name, LatencyHistogram.Snapshot snapshot) {
+        sb.append('"').append(name).append("\":{")
+                .append("\"count\":").append(snapshot.getCount())
+                .append(",\"mean\":").append(snapshot.getMeanUs())
+                .append(",\"p50\":").append(snapshot.getP50Us())
+                .append(",\"p90\":").append(snapshot.getP90Us())
+                .append(",\"p99\":").append(snapshot.getP99Us())
+                .append(",\"max\":").append(snapshot.getMaxUs())
+                .append('}');
+    }
+
+    private static final class FunctionStatistics {
+
+        private final AtomicLong queued = new AtomicLong();
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong expired = new AtomicLong();
+
+        // The time to reach each stage from the previous stage
+        private final LatencyHistogram[] stages = new LatencyHistogram[STAGES.length];
+        private final LatencyHistogram total = new LatencyHistogram();
+
+        private FunctionStatistics() {
+            for (int i = 0; i < stages.length; i++) {
+                stages[i] = new LatencyHistogram();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+package com.intersystems.dach.ens.sap.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps the data of queued messages as UTF-8 bytes in direct buffers outside of
+ * the heap. The buffers are taken from pools of fixed sizes and given back when
+ * the data has been read. Data above the compression threshold is compressed.
+ */
+public class PayloadBufferPool {
+
+    // Buffer sizes from 1 KB to 1 MB, larger data is kept on the heap
+    private static final int MIN_SIZE_SHIFT = 10;
+    private static final int MAX_SIZE_SHIFT = 20;
+
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal
+            .withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    private final Queue<ByteBuffer>[] pools;
+    private final long maxPooledBytes;
+    private final int compressionThreshold;
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    /**
+     * Data in a buffer of the pool.
+     */
+    public static final class Payload {
+
+        private final ByteBuffer buffer;
+        private final int length;
+        private final boolean compressed;
+
+        private Payload(ByteBuffer buffer, int length, boolean compressed) {
+            this.buffer = buffer;
+            this.length = length;
+            this.compressed = compressed;
+        }
+
+        /**
+         * @return The number of bytes the payload takes in the buffer.
+         */
+        public int getStoredBytes() {
+            return buffer.limit();
+        }
+    }
+
+    /**
+     * Create a new pool.
+     *
+     * @param maxPooledBytes       The maximum size of the unused buffers that are
+     *                             kept for reuse in bytes.
+     * @param compressionThreshold The size in bytes from which on data is
+     *                             compressed, 0 to disable compression.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public PayloadBufferPool(long maxPooledBytes, int compressionThreshold) {
+        this.maxPooledBytes = maxPooledBytes;
+        this.compressionThreshold = compressionThreshold;
+        pools = new Queue[MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1];
+        for (int i = 0; i < pools.length; i++) {
+            pools[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+        }
+    }
+
+    /**
+     * Store data in a buffer of the pool.
+     *
+     * @param data The data.
+     * @return The payload.
+     */
+    public Payload store(String data) {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        byte[] stored = bytes;
+        int storedLength = bytes.length;
+        boolean compressed = false;
+
+        if (compressionThreshold > 0 && bytes.length >= compressionThreshold) {
+            Deflater deflater = deflaters.get();
+            deflater.reset();
+            deflater.setInput(bytes);
+            deflater.finish();
+            byte[] output = new byte[bytes.length];
+            int outputLength = deflater.deflate(output);
+            // keep the data uncompressed if it does not get smaller
+            if (deflater.finished() && outputLength < bytes.length) {
+                stored = output;
+                storedLength = outputLength;
+                compressed = true;
+            }
+        }
+
+        ByteBuffer buffer = acquire(storedLength);
+        buffer.put(stored, 0, storedLength);
+        buffer.flip();
+        return new Payload(buffer, bytes.length, compressed);
+    }
+
+    /**
+     * Read the data of a payload as UTF-8 bytes and give its buffer back to the
+     * pool. The payload must not be used again.
+     *
+     * @param payload The payload.
+     * @return The data as UTF-8 bytes.
+     */
+    public byte[] load(Payload payload) {
+        byte[] stored = new byte[payload.buffer.limit()];
+        payload.buffer.get(stored);
+        release(payload.buffer);
+
+        if (!payload.compressed) {
+            return stored;
+        }
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(stored);
+        byte[] bytes = new byte[payload.length];
+        try {
+            int length = 0;
+            while (length < bytes.length && !inflater.finished()) {
+                length += inflater.inflate(bytes, length, bytes.length - length);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Could not decompress queued data.", e);
+        }
+        return bytes;
+    }
+
+    /**
+     * Give the buffer of a payload back to the pool without reading it.
+     *
+     * @param payload The payload.
+     */
+    public void discard(Payload payload) {
+        release(payload.buffer);
+    }
+
+    /**
+     * @return The size of the unused buffers in the pool in bytes.
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    private ByteBuffer acquire(int size) {
+        int index = sizeClass(size);
+        if (index < 0) {
+            return ByteBuffer.allocate(size);
+        }
+        ByteBuffer buffer = pools[index].poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(1 << (index + MIN_SIZE_SHIFT));
+        }
+        pooledBytes.addAndGet(-buffer.capacity());
+        return buffer;
+    }
+
+    private void release(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            return;
+        }
+        buffer.clear();
+        if (pooledBytes.addAndGet(buffer.capacity()) > maxPooledBytes) {
+            // the buffer is freed by the garbage collector
+            pooledBytes.addAndGet(-buffer.capacity());
+            return;
+        }
+        pools[sizeClass(buffer.capacity())].add(buffer);
+    }
+
+    /**
+     * Get the index of the smallest pool for the given size or -1 if the size is
+     * too large for the pools.
+     */
+    private static int sizeClass(int size) {
+        if (size > 1 << MAX_SIZE_SHIFT) {
+            return -1;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(shift, MIN_SIZE_SHIFT) - MIN_SIZE_SHIFT;
+    }
+
+}
@@ -0,0 +1,118 @@
+package com.intersystems.dach.ens.sap.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A registry of the XSD schemas that have been imported into IRIS. The
+ * registry is stored in an append-only index file with one line per import,
+ * containing the schema identifier and the hash of the schema content. It is
+ * loaded when the adapter starts, so schemas that have not changed since the
+ * last start are not imported again.
+ */
+public class SchemaRegistry {
+
+    // Name of the index file in the XML schema directory
+    public static final String INDEX_FILE_NAME = "schemas.idx";
+
+    private static final char SEPARATOR = '\t';
+
+    private final Path indexFilePath;
+
+    // Latest hash by schema identifier
+    private final Map<String, String> schemaHashes = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Create a registry and load the index file if it exists. If the index file
+     * contains outdated entries, it is compacted.
+     *
+     * @param indexFilePath The path of the index file
+     * @throws IOException If the index file could not be read
+     */
+    public SchemaRegistry(Path indexFilePath) throws IOException {
+        this.indexFilePath = indexFilePath;
+
+        if (!Files.exists(indexFilePath)) {
+            return;
+        }
+
+        String index = new String(Files.readAllBytes(indexFilePath), StandardCharsets.UTF_8);
+        int lineCount = 0;
+        int lineStart = 0;
+        int lineEnd;
+        while ((lineEnd = index.indexOf('\n', lineStart)) >= 0) {
+            int separatorIndex = index.indexOf(SEPARATOR, lineStart);
+            if (separatorIndex > lineStart && separatorIndex < lineEnd - 1) {
+                schemaHashes.put(index.substring(lineStart, separatorIndex),
+                        index.substring(separatorIndex + 1, lineEnd));
+            }
+            lineCount++;
+            lineStart = lineEnd + 1;
+        }
+
+        // a line that has not been written completely is removed by the compaction
+        if (lineCount > schemaHashes.size() || lineStart < index.length()) {
+            compact();
+        }
+    }
+
+    /**
+     * @return The number of registered schemas.
+     */
+    public int size() {
+        return schemaHashes.size();
+    }
+
+    /**
+     * Check if a schema with the given content has been imported.
+     *
+     * @param schemaId The Identifier of the XSD schema
+     * @param hash     The hash of the schema content
+     * @return true if the schema is registered with the same hash, false if not
+     */
+    public boolean isRegistered(String schemaId, String hash) {
+        return hash.equals(schemaHashes.get(schemaId));
+    }
+
+    /**
+     * Register an imported schema and append it to the index file.
+     *
+     * @param schemaId The Identifier of the XSD schema
+     * @param hash     The hash of the schema content
+     * @throws IOException If the index file could not be written
+     */
+    public synchronized void register(String schemaId, String hash) throws IOException {
+        if (isRegistered(schemaId, hash)) {
+            return;
+        }
+        try (Writer writer = Files.newBufferedWriter(indexFilePath, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(schemaId + SEPARATOR + hash + "\n");
+        }
+        schemaHashes.put(schemaId, hash);
+    }
+
+    /**
+     * Rewrite the index file with the latest entry of every schema only.
+     *
+     * @throws IOException If the index file could not be written
+     */
+    private synchronized void compact() throws IOException {
+        Path tempFilePath = indexFilePath.resolveSibling(indexFilePath.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tempFilePath, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String> entry : schemaHashes.entrySet()) {
+                writer.write(entry.getKey() + SEPARATOR + entry.getValue() + "\n");
+            }
+        }
+        Files.move(tempFilePath, indexFilePath, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
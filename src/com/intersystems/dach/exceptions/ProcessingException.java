@@ -0,0 +1,31 @@
+package com.intersystems.dach.exceptions;
+
+public class ProcessingException extends Exception {
+
+    /**
+     * The step of the processing that failed.
+     */
+    public enum Reason {
+        SCHEMA_REGISTRATION, OBJECT_CREATION, PROCESS_INPUT, UNKNOWN
+    }
+
+    private final Reason reason;
+
+    public ProcessingException(Reason reason, String message, Throwable cause) {
+        super(message, cause);
+        this.reason = reason;
+    }
+
+    public ProcessingException(String message, Throwable cause) {
+        this(Reason.UNKNOWN, message, cause);
+    }
+
+    public ProcessingException(String message) {
+        this(Reason.UNKNOWN, message, null);
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+}
@@ -0,0 +1,13 @@
+package com.intersystems.dach.exceptions;
+
+public class QueueFullException extends Exception {
+
+    public QueueFullException(String message) {
+        super(message);
+    }
+
+    public QueueFullException() {
+        super();
+    }
+
+}
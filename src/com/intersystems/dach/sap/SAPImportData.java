@@ -1,7 +1,22 @@
 package com.intersystems.dach.sap;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 import javax.naming.TimeLimitExceededException;
 
+import com.intersystems.dach.exceptions.ProcessingException;
+import com.intersystems.dach.sap.utils.XSDSchema;
+
 /**
  * A class that represents SAP Import Data
  * 
@@ -11,21 +26,46 @@ import javax.naming.TimeLimitExceededException;
  */
 public class SAPImportData {
 
-    private static long counter = 0;
+    /**
+     * The stages of the handling of the data, in the order they are reached.
+     */
+    public enum Stage {
+        RECEIVED, CONVERTED, SCHEMA_READY, ENQUEUED, DEQUEUED, PROCESSED, CONFIRMED
+    }
+
+    private static final int STAGE_COUNT = Stage.values().length;
+
+    private static final AtomicLong counter = new AtomicLong();
+
+    // Completes the confirmations that have timed out
+    private static final ScheduledThreadPoolExecutor timeoutScheduler = createTimeoutScheduler();
 
     private final long ID;
 
     private final String functionName;
 
-    private final String data;
+    private String data;
+
+    // The data as UTF-8 bytes, if it has been attached in this form
+    private byte[] dataUTF8;
 
     private final String schema;
 
+    private final String schemaHash;
+
     private final boolean isJSON;
 
-    private boolean confirmed;
+    // The outcome of the processing
+    private final CompletableFuture<Void> completion = new CompletableFuture<Void>();
+
+    // The time in System.nanoTime() at which each stage was reached, 0 if not reached
+    private final long[] stageTimes = new long[STAGE_COUNT];
+
+    // The time in System.nanoTime() after which the caller no longer waits, 0 if none
+    private volatile long deadlineNs;
 
-    private boolean schemaComplete;
+    // The messages that are combined in this message, empty for a single message
+    private List<SAPImportData> batch = Collections.emptyList();
 
     /**
      * Create a new SAPImportData object without schema
@@ -34,7 +74,7 @@ public class SAPImportData {
      * @param schema - the schema
      */
     public SAPImportData(String functionName, String data, boolean isJSON) {
-        this(functionName, data, isJSON, null, false);
+        this(functionName, data, isJSON, null);
     }
 
     /**
@@ -43,14 +83,60 @@ public class SAPImportData {
      * @param data   - the data
      * @param schema - the schema
      */
-    public SAPImportData(String functionName, String data, boolean isJSON, String schema, boolean schemaComplete) {
+    public SAPImportData(String functionName, String data, boolean isJSON, String schema) {
+        this(functionName, data, isJSON, schema, (schema == null ? null : XSDSchema.hash(schema)));
+    }
+
+    /**
+     * Create a new SAPImportData object with schema and the hash of the schema
+     * 
+     * @param data       - the data
+     * @param schema     - the schema
+     * @param schemaHash - the hash of the schema
+     */
+    public SAPImportData(String functionName, String data, boolean isJSON, String schema, String schemaHash) {
         this.functionName = functionName;
         this.data = data;
         this.isJSON = isJSON;
         this.schema = schema;
-        counter++;
-        ID = counter;
-        this.schemaComplete = schemaComplete;
+        this.schemaHash = schemaHash;
+        ID = counter.incrementAndGet();
+    }
+
+    /**
+     * Create a SAPImportData object that combines several messages of the same
+     * function. The outcome of the processing of the combined data is passed on
+     * to all combined messages.
+     * 
+     * @param functionName - the function name
+     * @param data         - the combined data
+     * @param isJSON       - true if the data is in JSON format
+     * @param batch        - the combined messages
+     * @return the combined SAPImportData object
+     */
+    public static SAPImportData combine(String functionName, String data, boolean isJSON,
+            List<SAPImportData> batch) {
+        SAPImportData combined = new SAPImportData(functionName, data, isJSON, null, null);
+        combined.batch = new ArrayList<SAPImportData>(batch);
+        return combined;
+    }
+
+    /**
+     * Get the messages that are combined in this message.
+     * 
+     * @return the combined messages, empty for a single message.
+     */
+    public List<SAPImportData> getBatch() {
+        return Collections.unmodifiableList(batch);
+    }
+
+    /**
+     * Get the number of messages in this message.
+     * 
+     * @return the number of combined messages, 1 for a single message.
+     */
+    public int getBatchCount() {
+        return batch.isEmpty() ? 1 : batch.size();
     }
 
     /**
@@ -71,15 +157,80 @@ public class SAPImportData {
         return schema;
     }
 
+    /**
+     * Get the hash of the schema
+     * 
+     * @return the schema hash or null if there is no schema
+     */
+    public String getSchemaHash() {
+        return schemaHash;
+    }
+
     /**
      * Get the data
      * 
      * @return the String
      */
     public String getData() {
+        if (data == null && dataUTF8 != null) {
+            data = new String(dataUTF8, StandardCharsets.UTF_8);
+            dataUTF8 = null;
+        }
         return data;
     }
 
+    /**
+     * Indicates if the data is available as UTF-8 bytes, so it can be passed on
+     * without creating a String.
+     * 
+     * @return true if the data is available as UTF-8 bytes.
+     */
+    public boolean isDataUTF8() {
+        return dataUTF8 != null;
+    }
+
+    /**
+     * Get the data as UTF-8 bytes.
+     * 
+     * @return the UTF-8 bytes or null if the data is not available in this form.
+     */
+    public byte[] getDataUTF8() {
+        return dataUTF8;
+    }
+
+    /**
+     * Remove the data from this object, so it can be kept outside of the heap
+     * while the object is waiting to be processed.
+     * 
+     * @return the data
+     */
+    public String detachData() {
+        String detached = getData();
+        data = null;
+        return detached;
+    }
+
+    /**
+     * Put back data that has been removed by {@link #detachData()}.
+     * 
+     * @param data the data
+     */
+    public void attachData(String data) {
+        this.data = data;
+        this.dataUTF8 = null;
+    }
+
+    /**
+     * Put back data that has been removed by {@link #detachData()} as UTF-8
+     * bytes.
+     * 
+     * @param dataUTF8 the data as UTF-8 bytes
+     */
+    public void attachData(byte[] dataUTF8) {
+        this.data = null;
+        this.dataUTF8 = dataUTF8;
+    }
+
     /**
      * Indicates if the data is in JSON format instead of XML.
      * 
@@ -90,41 +241,177 @@ public class SAPImportData {
     }
 
     /**
-     * Indicates if the schema is complete.
+     * Get the outcome of the processing. The future completes normally if the
+     * processing has been confirmed, exceptionally with a
+     * {@link ProcessingException} if it failed and is cancelled if the data will
+     * not be processed.
      * 
-     * @return true if the schema is complete, false if not.
+     * @return the outcome, completing it has no effect on the data.
      */
-    public boolean isSchemaComplete() {
-        return schemaComplete;
+    public CompletableFuture<Void> getCompletion() {
+        return completion.thenApply(v -> v);
     }
 
     /**
-     * Causes current thread to wait till the processing of the data has been
-     * confirmed.
+     * Get the outcome of the processing. If there is no outcome within the
+     * timeout, the future completes exceptionally with a
+     * {@link TimeLimitExceededException}.
      * 
      * @param timeoutMs the timeout in milliseconds.
-     * @throws TimeLimitExceededException
-     * @throws InterruptedException
+     * @return the outcome, completing it has no effect on the data.
      */
-    public void waitForConfirmation(long timeoutMs) throws TimeLimitExceededException, InterruptedException {
-        confirmed = false;
-        synchronized (this) {
-            this.wait(timeoutMs);
+    public CompletableFuture<Void> getCompletion(long timeoutMs) {
+        CompletableFuture<Void> result = getCompletion();
+        if (result.isDone()) {
+            return result;
         }
-        if (!confirmed) {
-            throw new TimeLimitExceededException("Confirmation timeout " + timeoutMs + " expired");
+        ScheduledFuture<?> timeout = timeoutScheduler.schedule(() -> result.completeExceptionally(
+                new TimeLimitExceededException("Confirmation timeout " + timeoutMs + " expired")),
+                timeoutMs, TimeUnit.MILLISECONDS);
+        result.whenComplete((v, e) -> timeout.cancel(false));
+        return result;
+    }
+
+    /**
+     * Causes current thread to wait till there is an outcome of the processing of
+     * the data.
+     * 
+     * @param timeoutMs the timeout in milliseconds.
+     * @throws TimeLimitExceededException if the processing has not been confirmed
+     *                                    in time.
+     * @throws ProcessingException        if the processing failed.
+     * @throws CancellationException      if the data will not be processed.
+     * @throws InterruptedException
+     */
+    public void waitForConfirmation(long timeoutMs)
+            throws TimeLimitExceededException, ProcessingException, InterruptedException {
+        try {
+            getCompletion(timeoutMs).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CancellationException) {
+                throw (CancellationException) cause;
+            }
+            if (cause instanceof TimeLimitExceededException) {
+                throw (TimeLimitExceededException) cause;
+            }
+            if (cause instanceof ProcessingException) {
+                throw (ProcessingException) cause;
+            }
+            throw new ProcessingException(cause.getMessage(), cause);
         }
     }
 
+    /**
+     * Record that a stage has been reached now.
+     * 
+     * @param stage the stage
+     */
+    public void markStage(Stage stage) {
+        stageTimes[stage.ordinal()] = System.nanoTime();
+    }
+
+    /**
+     * Record that a stage has been reached at the given time.
+     * 
+     * @param stage    the stage
+     * @param nanoTime the time as returned by {@link System#nanoTime()}
+     */
+    public void markStage(Stage stage, long nanoTime) {
+        stageTimes[stage.ordinal()] = nanoTime;
+    }
+
+    /**
+     * Get the time at which a stage has been reached.
+     * 
+     * @param stage the stage
+     * @return the time as returned by {@link System#nanoTime()} or 0 if the stage
+     *         has not been reached.
+     */
+    public long getStageTime(Stage stage) {
+        return stageTimes[stage.ordinal()];
+    }
+
     /**
      * Confirm that the data has been processed. All waiting threads will be
      * released.
      */
     public void confirmProcessed() {
-        confirmed = true;
-        synchronized (this) {
-            this.notify();
+        markStage(Stage.CONFIRMED);
+        for (SAPImportData importData : batch) {
+            importData.markStage(Stage.PROCESSED, getStageTime(Stage.PROCESSED));
+            importData.confirmProcessed();
         }
+        completion.complete(null);
+    }
+
+    /**
+     * Report that the processing of the data failed. All waiting threads will be
+     * released.
+     * 
+     * @param reason  the step of the processing that failed.
+     * @param message the description of the failure.
+     * @param cause   the cause of the failure or null.
+     */
+    public void failProcessing(ProcessingException.Reason reason, String message, Throwable cause) {
+        for (SAPImportData importData : batch) {
+            importData.failProcessing(reason, message, cause);
+        }
+        completion.completeExceptionally(new ProcessingException(reason, message, cause));
+    }
+
+    /**
+     * Report that the data will not be processed. All waiting threads will be
+     * released.
+     */
+    public void cancel() {
+        for (SAPImportData importData : batch) {
+            importData.cancel();
+        }
+        completion.cancel(false);
+    }
+
+    /**
+     * Set the time after which the caller no longer waits for the processing.
+     * 
+     * @param deadlineNs the deadline as returned by {@link System#nanoTime()}
+     */
+    public void setDeadline(long deadlineNs) {
+        this.deadlineNs = deadlineNs;
+    }
+
+    /**
+     * Get the time after which the caller no longer waits for the processing.
+     * 
+     * @return the deadline as returned by {@link System#nanoTime()} or 0 if there
+     *         is no deadline.
+     */
+    public long getDeadline() {
+        return deadlineNs;
+    }
+
+    /**
+     * Indicates if the caller no longer waits for the processing, because the
+     * deadline has passed or the data has been cancelled. Expired data must not
+     * be processed.
+     * 
+     * @return true if the data has expired.
+     */
+    public boolean isExpired() {
+        if (completion.isCancelled()) {
+            return true;
+        }
+        long deadline = deadlineNs;
+        return deadline != 0 && System.nanoTime() - deadline >= 0;
+    }
+
+    /**
+     * Indicates if there is an outcome of the processing.
+     * 
+     * @return true if the processing has been confirmed, failed or cancelled.
+     */
+    public boolean isDone() {
+        return completion.isDone();
     }
 
     /**
@@ -136,4 +423,14 @@ public class SAPImportData {
         return ID;
     }
 
+    private static ScheduledThreadPoolExecutor createTimeoutScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "SAP import data timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
 }
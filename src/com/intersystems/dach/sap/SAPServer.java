@@ -1,16 +1,23 @@
 package com.intersystems.dach.sap;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Map.Entry;
 
+import com.intersystems.dach.exceptions.QueueFullException;
 import com.intersystems.dach.sap.handlers.JCoServerFunctionHandlerImpl;
 import com.intersystems.dach.sap.handlers.SAPServerImportDataHandler;
 import com.intersystems.dach.sap.handlers.SAPServerErrorHandler;
 import com.intersystems.dach.sap.handlers.SAPServerExceptionHandler;
 import com.intersystems.dach.sap.handlers.SAPServerStateHandler;
 import com.intersystems.dach.sap.utils.DestinationDataProviderImpl;
+import com.intersystems.dach.sap.utils.ImportDataJournal;
 import com.intersystems.dach.sap.utils.ServerDataProviderImpl;
+import com.intersystems.dach.sap.utils.TIDStore;
+import com.intersystems.dach.utils.TraceManager;
 import com.intersystems.dach.sap.handlers.JCoServerTIDHandlerImpl;
 import com.sap.conn.jco.ext.DestinationDataProvider;
 import com.sap.conn.jco.ext.ServerDataProvider;
@@ -36,9 +43,16 @@ public class SAPServer implements JCoServerErrorListener,
         JCoServerExceptionListener,
         JCoServerStateChangedListener {
 
+    // Wait time before journaled data is offered again to a full queue
+    private static final long REPLAY_RETRY_MS = 1000;
+    private static final long REPLAY_STOP_TIMEOUT_MS = 10000;
+
     private String serverName;
     private String destinationName;
     private JCoServer jCoServer;
+    private TIDStore tidStore;
+    private ImportDataJournal journal;
+    private Thread replayThread;
 
     // Event handlers
     private SAPServerImportDataHandler importDataHandler;
@@ -83,14 +97,16 @@ public class SAPServer implements JCoServerErrorListener,
             throw new IllegalStateException("Server is already running.");
         }
 
-        StringBuilder sb = new StringBuilder();
-        for (Entry<Object, Object> e : objectProvider.getSapProperties().entrySet()) {
-            if (e.getKey().toString().equals(DestinationDataProvider.JCO_PASSWD)) {
-                continue;
+        if (objectProvider.getTraceManager().isEnabled()) {
+            StringBuilder sb = new StringBuilder();
+            for (Entry<Object, Object> e : objectProvider.getSapProperties().entrySet()) {
+                if (e.getKey().toString().equals(DestinationDataProvider.JCO_PASSWD)) {
+                    continue;
+                }
+                sb.append(e);
             }
-            sb.append(e);
+            trace("Settings: " + sb.toString());
         }
-        trace("Settings: " + sb.toString());
 
         trace("Registering settings with data provider.");
 
@@ -109,17 +125,28 @@ public class SAPServer implements JCoServerErrorListener,
 
         trace("Settings registered.");
 
+        // Open TID store and journal
+        try {
+            tidStore = openTIDStore();
+            journal = openJournal();
+        } catch (Exception e) {
+            deleteDataProviders();
+            closeTIDStore();
+            throw e;
+        }
+
         // Create jCoServer object
         this.jCoServer = JCoServerFactory.getServer(serverName);
 
         // Add generic Function handler
         trace("Adding handlers and listeners.");
         DefaultServerHandlerFactory.FunctionHandlerFactory factory = new DefaultServerHandlerFactory.FunctionHandlerFactory();
-        factory.registerGenericHandler(new JCoServerFunctionHandlerImpl(importDataHandler, objectProvider));
+        factory.registerGenericHandler(
+                new JCoServerFunctionHandlerImpl(importDataHandler, objectProvider, tidStore, journal));
         jCoServer.setCallHandlerFactory(factory);
 
         // Add TID handler
-        JCoServerTIDHandler tidHandler = new JCoServerTIDHandlerImpl();
+        JCoServerTIDHandler tidHandler = new JCoServerTIDHandlerImpl(tidStore, objectProvider);
         jCoServer.setTIDHandler(tidHandler);
 
         // Add event listeners
@@ -134,10 +161,20 @@ public class SAPServer implements JCoServerErrorListener,
             jCoServer.start();
         } catch (Exception e) {
             deleteDataProviders();
+            closeTIDStore();
+            closeJournal();
             throw e;
         }
 
         trace("Server started.");
+
+        // Replay the data that has been acknowledged but not processed
+        if (journal != null && journal.getReplayEntryCount() > 0) {
+            final ImportDataJournal replayedJournal = journal;
+            replayThread = new Thread(() -> replayJournal(replayedJournal), "SAP journal replay");
+            replayThread.setDaemon(true);
+            replayThread.start();
+        }
     }
 
     /**
@@ -221,7 +258,9 @@ public class SAPServer implements JCoServerErrorListener,
     }
 
     /**
-     * Stop the SAP server.
+     * Stop the SAP server and the replay of the journal. The TID store and the
+     * journal stay open until {@link #close()} is called, so the data that has
+     * already been received can still be confirmed.
      * 
      * @throws Exception if server can't be stopped.
      */
@@ -243,10 +282,165 @@ public class SAPServer implements JCoServerErrorListener,
                 jCoServer = null;
                 deleteDataProviders();
                 trace("Settings removed.");
+                stopReplay();
+            }
+
+        }
+
+    }
+
+    /**
+     * Close the TID store and the journal. Call this after the server has been
+     * stopped and the received data has been processed or cancelled.
+     */
+    public void close() {
+        closeTIDStore();
+        closeJournal();
+    }
+
+    /**
+     * Open the TID store. The log file is named after the program ID, so several
+     * servers can use the same directory. If no path is configured, the TIDs are
+     * only kept in memory.
+     * 
+     * @return The TID store
+     * @throws Exception if the TID store can't be opened.
+     */
+    private TIDStore openTIDStore() throws Exception {
+        String tidStorePath = objectProvider.getTidStorePath();
+        if (tidStorePath.isEmpty()) {
+            trace("TIDs are kept in memory.");
+            return new TIDStore(null);
+        }
+
+        Path directory = Paths.get(tidStorePath);
+        Files.createDirectories(directory);
+        Path logPath = directory.resolve(serverName + ".tidlog");
+        TIDStore store = new TIDStore(logPath);
+        trace("Opened TID store " + logPath + " with " + store.getOpenTIDCount() + " open TID(s).");
+        return store;
+    }
+
+    /**
+     * Close the TID store.
+     */
+    private void closeTIDStore() {
+        if (tidStore == null) {
+            return;
+        }
+        try {
+            tidStore.close();
+        } catch (Exception e) {
+            for (SAPServerExceptionHandler handler : exceptionHandlers) {
+                handler.onExceptionOccured(e);
+            }
+        }
+        tidStore = null;
+    }
+
+    /**
+     * Open the journal for transactional calls that are acknowledged early. The
+     * journal is stored next to the TID log, because a TID must only be stored as
+     * executed if its data is kept, too.
+     * 
+     * @return The journal or null if transactional calls are not acknowledged
+     *         early
+     * @throws Exception if the journal can't be opened.
+     */
+    private ImportDataJournal openJournal() throws Exception {
+        if (!objectProvider.isEarlyAcknowledgeTransactions()) {
+            return null;
+        }
+        String tidStorePath = objectProvider.getTidStorePath();
+        if (tidStorePath.isEmpty()) {
+            trace("Transactional calls are not acknowledged early without a TID store path.");
+            return null;
+        }
+
+        Path journalPath = Paths.get(tidStorePath).resolve(serverName + ".journal");
+        ImportDataJournal importDataJournal = new ImportDataJournal(journalPath);
+        trace("Opened journal " + journalPath + " with " + importDataJournal.getOpenEntryCount()
+                + " entries to replay.");
+        return importDataJournal;
+    }
+
+    /**
+     * Pass the journaled data to the import data handler. The replay runs while
+     * the server is running and the queue is processed, so it does not block the
+     * start. If the queue is full, an entry is offered again until the journal
+     * has been replayed or the server stops. The entries are read one at a time
+     * and only referenced until they are queued. Entries that have not been
+     * replayed stay in the journal.
+     * 
+     * @param replayedJournal The journal to replay
+     */
+    private void replayJournal(ImportDataJournal replayedJournal) {
+        trace("Replaying " + replayedJournal.getReplayEntryCount() + " journaled message(s).");
+        while (true) {
+            SAPImportData importData;
+            try {
+                importData = replayedJournal.pollReplayEntry();
+            } catch (Exception e) {
+                for (SAPServerExceptionHandler handler : exceptionHandlers) {
+                    handler.onExceptionOccured(e);
+                }
+                return;
+            }
+            if (importData == null) {
+                break;
             }
+            while (true) {
+                if (Thread.currentThread().isInterrupted()) {
+                    trace("Stopped replaying the journal, the remaining entries are replayed with the next start.");
+                    return;
+                }
+                try {
+                    importDataHandler.onImportDataReceived(importData);
+                    break;
+                } catch (QueueFullException e) {
+                    try {
+                        Thread.sleep(REPLAY_RETRY_MS);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+        trace("Journal replayed.");
+    }
 
+    /**
+     * Stop the replay of the journal.
+     */
+    private void stopReplay() {
+        if (replayThread == null) {
+            return;
+        }
+        replayThread.interrupt();
+        try {
+            replayThread.join(REPLAY_STOP_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        replayThread = null;
+    }
 
+    /**
+     * Close the journal. Entries that have not been processed are replayed with
+     * the next start.
+     */
+    private void closeJournal() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.close();
+        } catch (Exception e) {
+            for (SAPServerExceptionHandler handler : exceptionHandlers) {
+                handler.onExceptionOccured(e);
+            }
+        }
+        journal = null;
     }
 
     /**
@@ -264,7 +458,7 @@ public class SAPServer implements JCoServerErrorListener,
      * @param msg The message to trace
      */
     private void trace(String msg) {
-        objectProvider.getTraceManager().traceMessage(msg);
+        objectProvider.getTraceManager().trace(TraceManager.Category.SERVER, TraceManager.Level.INFO, msg);
     }
 
     @Override
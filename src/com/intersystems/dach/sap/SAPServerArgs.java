@@ -15,6 +15,8 @@ public class SAPServerArgs {
     private final boolean useJson;
     private final Properties sapProperties;
     private final String xmlNamespace;
+    private final String tidStorePath;
+    private final boolean earlyAcknowledgeTransactions;
 
     public SAPServerArgs(Properties sapProperties) {
         this(sapProperties, new TraceManager(), false, 20000, false, "");
@@ -25,6 +27,26 @@ public class SAPServerArgs {
             boolean flattenTablesItems,
             int confirmationTimeoutMs,
             boolean useJson, String xmlNamespace) {
+        this(sapProperties, traceManager, flattenTablesItems, confirmationTimeoutMs, useJson, xmlNamespace, "");
+    }
+
+    public SAPServerArgs(Properties sapProperties,
+            TraceManager traceManager,
+            boolean flattenTablesItems,
+            int confirmationTimeoutMs,
+            boolean useJson, String xmlNamespace,
+            String tidStorePath) {
+        this(sapProperties, traceManager, flattenTablesItems, confirmationTimeoutMs, useJson, xmlNamespace,
+                tidStorePath, false);
+    }
+
+    public SAPServerArgs(Properties sapProperties,
+            TraceManager traceManager,
+            boolean flattenTablesItems,
+            int confirmationTimeoutMs,
+            boolean useJson, String xmlNamespace,
+            String tidStorePath,
+            boolean earlyAcknowledgeTransactions) {
         this.flattenTablesItems = flattenTablesItems;
         this.confirmationTimeoutMs = confirmationTimeoutMs;
         this.useJson = useJson;
@@ -36,6 +58,14 @@ public class SAPServerArgs {
         } else {
             this.xmlNamespace = xmlNamespace;
         }
+
+        if (tidStorePath == null) {
+            this.tidStorePath = "";
+        } else {
+            this.tidStorePath = tidStorePath;
+        }
+
+        this.earlyAcknowledgeTransactions = earlyAcknowledgeTransactions;
     }
 
     /**
@@ -96,6 +126,27 @@ public class SAPServerArgs {
         return xmlNamespace;
     }
 
+    /**
+     * Get the path of the TID store. If the path is empty, the TIDs are only kept
+     * in memory.
+     * 
+     * @return The TID store path
+     */
+    public String getTidStorePath() {
+        return tidStorePath;
+    }
+
+    /**
+     * Get the early acknowledge flag. If this flag is set to true, the data of
+     * transactional calls is written to a journal and the call returns before
+     * the data has been processed. The journal is stored in the TID store path.
+     * 
+     * @return The early acknowledge flag
+     */
+    public boolean isEarlyAcknowledgeTransactions() {
+        return earlyAcknowledgeTransactions;
+    }
+
     /**
      * Get the converted XML namespace. Where the placeholder {functionName} is set
      * to the given function name.
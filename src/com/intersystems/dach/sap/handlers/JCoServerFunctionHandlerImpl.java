@@ -1,12 +1,22 @@
 package com.intersystems.dach.sap.handlers;
 
+import java.util.concurrent.CancellationException;
+
 import javax.naming.TimeLimitExceededException;
 
+import com.intersystems.dach.exceptions.ProcessingException;
+import com.intersystems.dach.exceptions.QueueFullException;
+
 import com.intersystems.dach.sap.SAPImportData;
 import com.intersystems.dach.sap.SAPServerArgs;
-import com.intersystems.dach.sap.utils.XMLUtils;
+import com.intersystems.dach.sap.utils.ImportDataJournal;
+import com.intersystems.dach.sap.utils.JCoSerializer;
+import com.intersystems.dach.sap.utils.TIDStore;
 import com.intersystems.dach.sap.utils.XSDSchema;
 import com.intersystems.dach.sap.utils.XSDUtils;
+import com.intersystems.dach.utils.TraceManager;
+import com.intersystems.dach.utils.TraceManager.Category;
+import com.intersystems.dach.utils.TraceManager.Level;
 import com.sap.conn.jco.AbapClassException;
 import com.sap.conn.jco.AbapException;
 import com.sap.conn.jco.JCoFunction;
@@ -26,8 +36,15 @@ public class JCoServerFunctionHandlerImpl implements JCoServerFunctionHandler {
     private final SAPServerImportDataHandler importDataHandler;
     private SAPServerArgs sapServerArgs;
 
+    // The states of transactional calls
+    private final TIDStore tidStore;
+
+    // The journal for transactional calls that are acknowledged early
+    private final ImportDataJournal journal;
+
     // utils instances
-    private XMLUtils xmlUtils;
+    private final TraceManager traceManager;
+    private JCoSerializer serializer;
     private XSDUtils xsdUtils;
 
     /**
@@ -39,44 +56,57 @@ public class JCoServerFunctionHandlerImpl implements JCoServerFunctionHandler {
      * @param confirmationTimeoutMs the timeout for the confirmation
      * @param traceManagerHandle    the trace manager handle
      * @param flattenTablesItems    if true, the tables and items will be flattened
+     * @param tidStore              the store for the states of transactional
+     *                              calls
+     * @param journal               the journal for transactional calls that are
+     *                              acknowledged early or null
      */
-    public JCoServerFunctionHandlerImpl(SAPServerImportDataHandler importDataHandler, SAPServerArgs sapServerArgs) {
+    public JCoServerFunctionHandlerImpl(SAPServerImportDataHandler importDataHandler, SAPServerArgs sapServerArgs,
+            TIDStore tidStore, ImportDataJournal journal) {
         this.importDataHandler = importDataHandler;
         this.sapServerArgs = sapServerArgs;
-        xmlUtils = new XMLUtils(sapServerArgs);
+        this.tidStore = tidStore;
+        this.journal = journal;
+        traceManager = sapServerArgs.getTraceManager();
+        serializer = new JCoSerializer(sapServerArgs);
         xsdUtils = new XSDUtils(sapServerArgs);
     }
 
     @Override
     public void handleRequest(JCoServerContext serverCtx, JCoFunction function)
             throws AbapException, AbapClassException {
+        long receivedNs = System.nanoTime();
         String functionName = function.getName();
         String data = null;
         XSDSchema schema = null;
-        boolean schemaComplete = false;
+        long convertedNs;
+        long schemaReadyNs = 0;
 
-        trace("Handle request by function '" + functionName + "'.");
+        traceManager.sampleRequest(functionName);
+        traceManager.trace(Category.REQUEST, Level.INFO, "Handle request by function '{}'.", functionName);
 
         if (sapServerArgs.isUseJson()) {
-            data = function.getImportParameterList().toJSON();
+            data = serializer.toJSON(function.getImportParameterList(), functionName);
+            convertedNs = System.nanoTime();
         } else {
             try {
-                String importParameterXML = function.getImportParameterList().toXML();
-                trace("ImportParameter: " + importParameterXML);
-                trace("Convertig to XML...");
-                data = xmlUtils.convert(importParameterXML, functionName);
-                trace("XML data: " + data);
+                traceManager.trace(Category.REQUEST, Level.DEBUG, "Convertig to XML...");
+                data = serializer.toXML(function.getImportParameterList(), functionName);
+                convertedNs = System.nanoTime();
+                traceManager.trace(Category.PAYLOAD, Level.DEBUG, "XML data: {}", data);
             } catch (Exception e) {
-                trace("Could not convert import parameters to XML: " + e.getMessage());
+                traceManager.trace(Category.REQUEST, Level.INFO, "Could not convert import parameters to XML: {}",
+                        e.getMessage());
                 throw new AbapClassException(e);
             }
             try {
-                trace("Generating XSD schema...");
+                traceManager.trace(Category.SCHEMA, Level.DEBUG, "Generating XSD schema...");
                 schema = xsdUtils.createXSD(function, true, false);
-                schemaComplete = schema.isSchemaComplete();
-                trace("XSD data: " + schema.getSchema());
+                schemaReadyNs = System.nanoTime();
+                traceManager.trace(Category.PAYLOAD, Level.DEBUG, "XSD data: {}", schema.getSchema());
             } catch (Exception e) {
-                trace("Could not create XSD schema for function '" + functionName + "': " + e.getMessage());
+                traceManager.trace(Category.SCHEMA, Level.INFO, "Could not create XSD schema for function '{}': {}",
+                        functionName, e.getMessage());
             }
         }
         try {
@@ -85,29 +115,91 @@ public class JCoServerFunctionHandlerImpl implements JCoServerFunctionHandler {
                     data,
                     sapServerArgs.isUseJson(),
                     (schema == null ? null : schema.getSchema()),
-                    schemaComplete);
+                    (schema == null ? null : schema.getHash()));
+            importData.markStage(SAPImportData.Stage.RECEIVED, receivedNs);
+            importData.markStage(SAPImportData.Stage.CONVERTED, convertedNs);
+            if (schemaReadyNs != 0) {
+                importData.markStage(SAPImportData.Stage.SCHEMA_READY, schemaReadyNs);
+            }
+
+            if (journal != null && serverCtx.isTransactional()) {
+                // The data is kept in the journal until it has been processed
+                long sequence = journal.append(importData);
+                if (tidStore != null) {
+                    tidStore.setState(serverCtx.getTID(), TIDStore.State.EXECUTED);
+                }
+                if (traceManager.isEnabled(Category.TRANSACTION, Level.INFO)) {
+                    traceManager.trace(Category.TRANSACTION, Level.INFO, "Journaled message with ID "
+                            + importData.getID() + " of transaction " + serverCtx.getTID() + ".");
+                }
+                try {
+                    importDataHandler.onImportDataReceived(importData);
+                } catch (QueueFullException e) {
+                    // SAP has to repeat the transaction
+                    if (tidStore != null) {
+                        tidStore.setState(serverCtx.getTID(), TIDStore.State.ROLLED_BACK);
+                    }
+                    journal.acknowledge(sequence);
+                    throw e;
+                }
+                return;
+            }
 
-            trace("Calling import data receiver handler.");
+            // The wait for free space in the queue and for the confirmation share the deadline
+            long deadlineNs = receivedNs + sapServerArgs.getConfirmationTimeoutMs() * 1000000L;
+            importData.setDeadline(deadlineNs);
+
+            traceManager.trace(Category.REQUEST, Level.DEBUG, "Calling import data receiver handler.");
             importDataHandler.onImportDataReceived(importData);
 
-            trace("Waiting for confirmation for message with ID " + importData.getID() + ".");
+            traceManager.trace(Category.REQUEST, Level.DEBUG, "Waiting for confirmation for message with ID {}.",
+                    importData.getID());
+
+            try {
+                importData.waitForConfirmation(Math.max(0, (deadlineNs - System.nanoTime()) / 1000000L));
+            } catch (TimeLimitExceededException e) {
+                // SAP considers the call as failed and will repeat it, so the data must not be processed
+                importData.cancel();
+                throw e;
+            }
 
-            importData.waitForConfirmation(sapServerArgs.getConfirmationTimeoutMs());
+            traceManager.trace(Category.REQUEST, Level.INFO, "Confirmation received for message with ID {}.",
+                    importData.getID());
 
-            trace("Confirmation received for message with ID " + importData.getID() + ".");
+            // A repeated call of the transaction will not be processed again
+            if (serverCtx.isTransactional() && tidStore != null) {
+                tidStore.setState(serverCtx.getTID(), TIDStore.State.EXECUTED);
+            }
+        } catch (QueueFullException e) {
+            throw new AbapException("QUEUE_FULL", "Queue is full. InputData can't be accepted: " + e.getMessage());
         } catch (TimeLimitExceededException e) {
             throw new AbapException("SYSTEM_FAILURE", "Confirmation Timeout. InputData wasn't handled in time.");
+        } catch (ProcessingException e) {
+            throw new AbapException(getAbapKey(e.getReason()), "Processing failed: " + e.getMessage());
+        } catch (CancellationException e) {
+            throw new AbapException("SYSTEM_FAILURE", "Processing was cancelled. InputData will not be handled.");
         } catch (Exception e) {
             throw new AbapException("SYSTEM_FAILURE", "Could not process import parameters: " + e.getMessage());
         }
     }
 
     /**
-     * Trace a message.
+     * Get the ABAP exception key for a failed processing, so that the caller can
+     * tell the failures apart.
      * 
-     * @param msg The message to trace
+     * @param reason The step of the processing that failed
+     * @return The ABAP exception key
      */
-    private void trace(String msg) {
-        sapServerArgs.getTraceManager().traceMessage(msg);
+    private static String getAbapKey(ProcessingException.Reason reason) {
+        switch (reason) {
+            case SCHEMA_REGISTRATION:
+                return "SCHEMA_REGISTRATION_FAILED";
+            case OBJECT_CREATION:
+                return "DATA_OBJECT_CREATION_FAILED";
+            case PROCESS_INPUT:
+                return "PROCESS_INPUT_FAILED";
+            default:
+                return "SYSTEM_FAILURE";
+        }
     }
 }
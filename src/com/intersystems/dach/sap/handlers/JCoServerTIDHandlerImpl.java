@@ -1,35 +1,82 @@
 package com.intersystems.dach.sap.handlers;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import com.intersystems.dach.sap.SAPServerArgs;
+import com.intersystems.dach.sap.utils.TIDStore;
+import com.intersystems.dach.utils.TraceManager;
 import com.sap.conn.jco.server.JCoServerContext;
 import com.sap.conn.jco.server.JCoServerTIDHandler;
 
 /**
- * Simple implemenation of the TIDHandler required by SAP JCo server.
- * 
+ * Implemenation of the TIDHandler required by SAP JCo server. The states of
+ * the transactional RFC calls are kept in a {@link TIDStore}, so that a call
+ * that SAP repeats is not processed twice.
+ *
  * @author Philipp Bonin, Andreas Schütz
  * @version 1.0
- * 
+ *
  */
 public class JCoServerTIDHandlerImpl implements JCoServerTIDHandler {
 
+    private TIDStore tidStore;
+
+    private SAPServerArgs sapServerArgs;
+
+    public JCoServerTIDHandlerImpl(TIDStore tidStore, SAPServerArgs sapServerArgs) {
+        this.tidStore = tidStore;
+        this.sapServerArgs = sapServerArgs;
+    }
+
     @Override
     public boolean checkTID(JCoServerContext serverCtx, String tid) {
-        return true;  
+        try {
+            if (tidStore.begin(tid)) {
+                trace("Executing transaction {}.", tid, null);
+                return true;
+            }
+            trace("Transaction {} has already been executed.", tid, null);
+            return false;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not store transaction " + tid + ".", e);
+        }
     }
 
     @Override
     public void commit(JCoServerContext serverCtx, String tid) {
-
+        setState(tid, TIDStore.State.COMMITTED);
     }
 
     @Override
     public void confirmTID(JCoServerContext serverCtx, String tid) {
-
+        setState(tid, TIDStore.State.CONFIRMED);
     }
 
     @Override
     public void rollback(JCoServerContext serverCtx, String tid) {
+        setState(tid, TIDStore.State.ROLLED_BACK);
+    }
+
+    private void setState(String tid, TIDStore.State state) {
+        try {
+            tidStore.setState(tid, state);
+            trace("Transaction {} is {}.", tid, state);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not store transaction " + tid + ".", e);
+        }
+    }
 
+    /**
+     * Trace a message. The message is only built if transactions are traced.
+     *
+     * @param template The template of the message
+     * @param arg1     The first argument
+     * @param arg2     The second argument
+     */
+    private void trace(String template, Object arg1, Object arg2) {
+        sapServerArgs.getTraceManager().trace(TraceManager.Category.TRANSACTION, TraceManager.Level.INFO,
+                template, arg1, arg2);
     }
 
 }
@@ -1,5 +1,6 @@
 package com.intersystems.dach.sap.handlers;
 
+import com.intersystems.dach.exceptions.QueueFullException;
 import com.intersystems.dach.sap.SAPImportData;
 
 /**
@@ -14,8 +15,9 @@ public interface SAPServerImportDataHandler {
      * SAPImportDataHandler callback method
      * 
      * @param args the SAPImportData
-     * @return the result of the method
+     * @throws QueueFullException if the data can't be accepted, because too much
+     *                            data is waiting to be processed.
      */
-    void onImportDataReceived(SAPImportData data);
+    void onImportDataReceived(SAPImportData data) throws QueueFullException;
 
 }
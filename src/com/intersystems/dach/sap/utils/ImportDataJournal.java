@@ -0,0 +1,392 @@
+package com.intersystems.dach.sap.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.zip.CRC32;
+
+import com.intersystems.dach.sap.SAPImportData;
+
+/**
+ * A write-ahead journal for import data of transactional calls that are
+ * acknowledged to SAP before they have been processed. An entry is flushed to
+ * disk before the call returns and acknowledged when the data has been
+ * processed. Entries whose processing failed are copied to a dead-letter file
+ * next to the journal and acknowledged, too. Entries that have not been
+ * acknowledged are replayed when the journal is opened again, this includes
+ * the entries that have been cancelled because the adapter stopped. They are
+ * read one at a time, so the replay does not hold them all in memory. The
+ * journal is truncated whenever all entries have been acknowledged.
+ */
+public class ImportDataJournal implements Closeable {
+
+    private static final byte TYPE_ENTRY = 1;
+    private static final byte TYPE_ACK = 2;
+
+    // Extension of the file that keeps the entries whose processing failed
+    private static final String DEAD_LETTER_EXTENSION = ".failed";
+
+    // Record header: length, checksum, type, sequence number
+    private static final int HEADER_SIZE = 4 + 4 + 1 + 8;
+
+    private final FileChannel channel;
+    private final Path deadLetterPath;
+    private FileChannel deadLetterChannel;
+
+    // Lock order: flushLock before appendLock
+    private final Object appendLock = new Object();
+    private final Object flushLock = new Object();
+
+    private long lastSequence;
+    private long writtenSequence;
+    private volatile long flushedSequence;
+    private int openEntries;
+
+    // Positions of the entries that have to be replayed by sequence number
+    private final Map<Long, Long> replayPositions = new LinkedHashMap<Long, Long>();
+
+    /**
+     * Open the journal and read the entries that have not been acknowledged.
+     *
+     * @param journalPath The path of the journal file
+     * @throws IOException If the journal could not be opened
+     */
+    public ImportDataJournal(Path journalPath) throws IOException {
+        channel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        deadLetterPath = journalPath.resolveSibling(journalPath.getFileName() + DEAD_LETTER_EXTENSION);
+        load();
+    }
+
+    /**
+     * Read the next entry that has not been acknowledged before the journal was
+     * opened. The entry is acknowledged when it is confirmed.
+     *
+     * @return The entry to replay or null if all entries have been read
+     * @throws IOException If the entry could not be read
+     */
+    public SAPImportData pollReplayEntry() throws IOException {
+        long sequence;
+        long position;
+        ByteBuffer record;
+        synchronized (appendLock) {
+            Iterator<Map.Entry<Long, Long>> iterator = replayPositions.entrySet().iterator();
+            if (!iterator.hasNext()) {
+                return null;
+            }
+            Map.Entry<Long, Long> entry = iterator.next();
+            iterator.remove();
+            sequence = entry.getKey();
+            position = entry.getValue();
+            record = readRecord(position);
+        }
+        SAPImportData importData = deserialize(
+                ByteBuffer.wrap(record.array(), HEADER_SIZE, record.capacity() - HEADER_SIZE));
+        registerAcknowledge(importData, sequence, position);
+        return importData;
+    }
+
+    /**
+     * @return The number of entries that have not been read for the replay yet.
+     */
+    public int getReplayEntryCount() {
+        synchronized (appendLock) {
+            return replayPositions.size();
+        }
+    }
+
+    /**
+     * Append import data to the journal and flush it to disk. Concurrent appends
+     * are flushed together. When the data is confirmed or its processing fails,
+     * the entry is acknowledged.
+     *
+     * @param importData The import data
+     * @return The sequence number of the entry
+     * @throws IOException If the entry could not be written
+     */
+    public long append(SAPImportData importData) throws IOException {
+        byte[] payload = serialize(importData);
+        long sequence;
+        long position;
+        synchronized (appendLock) {
+            sequence = ++lastSequence;
+            position = write(TYPE_ENTRY, sequence, payload);
+            openEntries++;
+        }
+        flush(sequence);
+        registerAcknowledge(importData, sequence, position);
+        return sequence;
+    }
+
+    /**
+     * Acknowledge an entry. The acknowledge is written without flushing, it is
+     * flushed with the next append. If no entry is open anymore, the journal is
+     * truncated.
+     *
+     * @param sequence The sequence number of the entry
+     * @throws IOException If the acknowledge could not be written
+     */
+    public void acknowledge(long sequence) throws IOException {
+        synchronized (flushLock) {
+            synchronized (appendLock) {
+                openEntries--;
+                if (openEntries == 0) {
+                    channel.truncate(0);
+                    channel.force(false);
+                    flushedSequence = lastSequence;
+                    writtenSequence = lastSequence;
+                } else {
+                    write(TYPE_ACK, sequence, new byte[0]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The path of the file that keeps the entries whose processing
+     *         failed.
+     */
+    public Path getDeadLetterPath() {
+        return deadLetterPath;
+    }
+
+    /**
+     * @return The number of entries that have not been acknowledged.
+     */
+    public int getOpenEntryCount() {
+        synchronized (appendLock) {
+            return openEntries;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (flushLock) {
+            synchronized (appendLock) {
+                channel.force(false);
+                channel.close();
+                if (deadLetterChannel != null) {
+                    deadLetterChannel.close();
+                    deadLetterChannel = null;
+                }
+            }
+        }
+    }
+
+    private void registerAcknowledge(SAPImportData importData, final long sequence, final long position) {
+        importData.getCompletion().whenComplete((result, error) -> {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null
+                    ? error.getCause()
+                    : error;
+            if (cause instanceof CancellationException) {
+                // the adapter stops, the entry is replayed with the next start
+                return;
+            }
+            try {
+                if (cause != null) {
+                    moveToDeadLetter(position);
+                }
+                acknowledge(sequence);
+            } catch (IOException e) {
+                // the entry is replayed after a restart
+            }
+        });
+    }
+
+    /**
+     * Copy the record of an entry whose processing failed to the dead-letter
+     * file. The file has the same format as the journal.
+     */
+    private void moveToDeadLetter(long position) throws IOException {
+        synchronized (appendLock) {
+            ByteBuffer record = readRecord(position);
+
+            if (deadLetterChannel == null) {
+                deadLetterChannel = FileChannel.open(deadLetterPath, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            while (record.hasRemaining()) {
+                deadLetterChannel.write(record);
+            }
+            deadLetterChannel.force(false);
+        }
+    }
+
+    /**
+     * Read the record at the given position. Must be called with the append
+     * lock.
+     *
+     * @return The record, ready to be written
+     */
+    private ByteBuffer readRecord(long position) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, position);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + header.getInt(0));
+        while (record.hasRemaining()) {
+            if (channel.read(record, position + record.position()) < 0) {
+                throw new IOException("Journal record at position " + position + " is truncated.");
+            }
+        }
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Write a record at the end of the journal. Must be called with the append
+     * lock.
+     *
+     * @return The position of the record
+     */
+    private long write(byte type, long sequence, byte[] payload) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        record.putInt(payload.length);
+        record.putInt(0);
+        record.put(type);
+        record.putLong(sequence);
+        record.put(payload);
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, record.capacity() - 8);
+        record.putInt(4, (int) crc.getValue());
+
+        record.flip();
+        long start = channel.size();
+        long position = start;
+        while (record.hasRemaining()) {
+            position += channel.write(record, position);
+        }
+        writtenSequence = sequence;
+        return start;
+    }
+
+    /**
+     * Flush the journal up to the given sequence number. The first thread that
+     * has to flush flushes the records of all waiting threads.
+     */
+    private void flush(long sequence) throws IOException {
+        if (flushedSequence >= sequence) {
+            return;
+        }
+        synchronized (flushLock) {
+            if (flushedSequence >= sequence) {
+                return;
+            }
+            long target;
+            synchronized (appendLock) {
+                target = writtenSequence;
+            }
+            channel.force(false);
+            flushedSequence = target;
+        }
+    }
+
+    /**
+     * Read the journal and collect the positions of the entries that have not
+     * been acknowledged.
+     */
+    private void load() throws IOException {
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        CRC32 crc = new CRC32();
+
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            channel.read(header, position);
+            int length = header.getInt(0);
+            if (length < 0 || position + HEADER_SIZE + length > size) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            channel.read(payload, position + HEADER_SIZE);
+
+            crc.reset();
+            crc.update(header.array(), 8, HEADER_SIZE - 8);
+            crc.update(payload.array(), 0, length);
+            if ((int) crc.getValue() != header.getInt(4)) {
+                // the record has not been written completely
+                break;
+            }
+
+            long sequence = header.getLong(9);
+            lastSequence = Math.max(lastSequence, sequence);
+            if (header.get(8) == TYPE_ENTRY) {
+                replayPositions.put(sequence, position);
+            } else {
+                replayPositions.remove(sequence);
+            }
+            position += HEADER_SIZE + length;
+        }
+
+        // drop a record that has not been written completely
+        if (position < size) {
+            channel.truncate(position);
+        }
+
+        if (replayPositions.isEmpty()) {
+            channel.truncate(0);
+        }
+        channel.force(false);
+
+        openEntries = replayPositions.size();
+        writtenSequence = lastSequence;
+        flushedSequence = lastSequence;
+    }
+
+    private static byte[] serialize(SAPImportData importData) {
+        byte[][] fields = new byte[][] {
+                toBytes(importData.getFunctionName()),
+                toBytes(importData.getData()),
+                toBytes(importData.getSchema()),
+                toBytes(importData.getSchemaHash())
+        };
+        int size = 1;
+        for (byte[] field : fields) {
+            size += 4 + (field == null ? 0 : field.length);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put((byte) (importData.isJSON() ? 1 : 0));
+        for (byte[] field : fields) {
+            if (field == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(field.length);
+                buffer.put(field);
+            }
+        }
+        return buffer.array();
+    }
+
+    private static SAPImportData deserialize(ByteBuffer buffer) {
+        boolean isJSON = buffer.get() == 1;
+        String functionName = readString(buffer);
+        String data = readString(buffer);
+        String schema = readString(buffer);
+        String schemaHash = readString(buffer);
+        return new SAPImportData(functionName, data, isJSON, schema, schemaHash);
+    }
+
+    private static byte[] toBytes(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+}
@@ -0,0 +1,332 @@
+package com.intersystems.dach.sap.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.intersystems.dach.sap.SAPServerArgs;
+import com.intersystems.dach.sap.utils.SerializationPlan.FunctionPlan;
+import com.sap.conn.jco.JCoMetaData;
+import com.sap.conn.jco.JCoRecord;
+import com.sap.conn.jco.JCoTable;
+
+/**
+ * This class serializes JCo records directly to XML or JSON. The records are
+ * walked through their {@link JCoMetaData}, so no intermediate representation
+ * created by JCo has to be parsed again. For every function a
+ * {@link SerializationPlan} is compiled once and reused while the meta data
+ * does not change.
+ */
+public class JCoSerializer {
+
+    // Buffers bigger than this are not kept for the next call
+    private static final int MAX_RETAINED_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    // One output buffer per JCo handler thread
+    private static final ThreadLocal<StringBuilder> outputBuffer = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(8192);
+        }
+    };
+
+    // Tags of the table row elements
+    private static final String ITEM_START_TAG = "<item>";
+    private static final String ITEM_END_TAG = "</item>";
+    private static final String ITEM_EMPTY_TAG = "<item/>";
+
+    // Compiled plans by function name
+    private final Map<String, FunctionPlan> plans = new ConcurrentHashMap<String, FunctionPlan>();
+
+    private SAPServerArgs sapServerArgs;
+
+    public JCoSerializer(SAPServerArgs sapServerArgs) {
+        this.sapServerArgs = sapServerArgs;
+    }
+
+    /**
+     * Serialize a record to XML. The root element is named after the function
+     * and the configured namespace is added.
+     *
+     * @param record       The record to serialize, may be null
+     * @param functionName The name of the function
+     * @return XML in String format
+     */
+    public String toXML(JCoRecord record, String functionName) {
+        FunctionPlan plan = getPlan(record, functionName);
+        StringBuilder sb = acquireBuffer();
+        try {
+            sb.append(plan.xmlRootStartTag);
+            int contentStart = sb.length();
+            if (record != null) {
+                writeXMLFields(sb, record, plan.root, sapServerArgs.isFlattenTablesItems());
+            }
+            if (sb.length() == contentStart) {
+                sb.setLength(0);
+                sb.append(plan.xmlRootEmptyTag);
+            } else {
+                sb.append(plan.xmlRootEndTag);
+            }
+            return sb.toString();
+        } finally {
+            releaseBuffer(sb);
+        }
+    }
+
+    /**
+     * Serialize a record to JSON.
+     *
+     * @param record       The record to serialize, may be null
+     * @param functionName The name of the function
+     * @return JSON in String format
+     */
+    public String toJSON(JCoRecord record, String functionName) {
+        StringBuilder sb = acquireBuffer();
+        try {
+            if (record == null) {
+                sb.append("{}");
+            } else {
+                writeJSONObject(sb, record, getPlan(record, functionName).root);
+            }
+            return sb.toString();
+        } finally {
+            releaseBuffer(sb);
+        }
+    }
+
+    /**
+     * Get the serialization plan for a record. The cached plan is reused as long
+     * as the record has the same meta data object or a structurally equal one.
+     *
+     * @param record       The record to serialize, may be null
+     * @param functionName The name of the function
+     * @return The serialization plan
+     */
+    private FunctionPlan getPlan(JCoRecord record, String functionName) {
+        JCoMetaData metaData = record == null ? null : record.getMetaData();
+
+        FunctionPlan plan = plans.get(functionName);
+        if (plan != null && plan.metaData == metaData) {
+            return plan;
+        }
+
+        long fingerprint = MetaDataFingerprint.of(metaData);
+        if (plan != null && plan.fingerprint == fingerprint) {
+            // same structure, but the meta data has been reloaded
+            plan = plan.withMetaData(metaData);
+        } else {
+            plan = new FunctionPlan(metaData, fingerprint, SerializationPlan.compile(metaData), functionName,
+                    sapServerArgs.getConvertedXMLNamespace(functionName));
+        }
+        plans.put(functionName, plan);
+        return plan;
+    }
+
+    /**
+     * Write all fields of a record as XML elements. If the table items are
+     * flattened, the rows of the tables are written after all other fields.
+     *
+     * @param sb      The output buffer
+     * @param record  The record to write
+     * @param plan    The plan of the record
+     * @param flatten If true, the table items will be flattened
+     */
+    private void writeXMLFields(StringBuilder sb, JCoRecord record, SerializationPlan plan, boolean flatten) {
+        byte[] kinds = plan.kinds;
+
+        boolean hasRows = false;
+        for (int i = 0; i < plan.fieldCount; i++) {
+            if (flatten && kinds[i] == SerializationPlan.KIND_TABLE && !record.getTable(i).isEmpty()) {
+                hasRows = true;
+                continue;
+            }
+            writeXMLField(sb, record, plan, i, flatten);
+        }
+
+        if (!hasRows) {
+            return;
+        }
+
+        for (int i : plan.tableIndices) {
+            JCoTable table = record.getTable(i);
+            SerializationPlan rowPlan = plan.children[i];
+            for (int row = 0; row < table.getNumRows(); row++) {
+                table.setRow(row);
+                sb.append(plan.startTags[i]);
+                int contentStart = sb.length();
+                writeXMLFields(sb, table, rowPlan, true);
+                endElement(sb, contentStart, plan.startTags[i], plan.emptyTags[i], plan.endTags[i]);
+            }
+        }
+    }
+
+    /**
+     * Write a single field of a record as XML element.
+     *
+     * @param sb      The output buffer
+     * @param record  The record containing the field
+     * @param plan    The plan of the record
+     * @param i       The index of the field
+     * @param flatten If true, the table items will be flattened
+     */
+    private void writeXMLField(StringBuilder sb, JCoRecord record, SerializationPlan plan, int i, boolean flatten) {
+        sb.append(plan.startTags[i]);
+        int contentStart = sb.length();
+
+        switch (plan.kinds[i]) {
+            case SerializationPlan.KIND_STRUCTURE:
+                writeXMLFields(sb, record.getStructure(i), plan.children[i], flatten);
+                break;
+            case SerializationPlan.KIND_TABLE:
+                JCoTable table = record.getTable(i);
+                SerializationPlan rowPlan = plan.children[i];
+                for (int row = 0; row < table.getNumRows(); row++) {
+                    table.setRow(row);
+                    sb.append(ITEM_START_TAG);
+                    int itemStart = sb.length();
+                    writeXMLFields(sb, table, rowPlan, flatten);
+                    endElement(sb, itemStart, ITEM_START_TAG, ITEM_EMPTY_TAG, ITEM_END_TAG);
+                }
+                break;
+            default:
+                String value = record.getString(i);
+                if (value != null) {
+                    XMLUtils.escape(sb, value, false);
+                }
+                break;
+        }
+
+        endElement(sb, contentStart, plan.startTags[i], plan.emptyTags[i], plan.endTags[i]);
+    }
+
+    /**
+     * Write a record as JSON object.
+     *
+     * @param sb     The output buffer
+     * @param record The record to write
+     * @param plan   The plan of the record
+     */
+    private void writeJSONObject(StringBuilder sb, JCoRecord record, SerializationPlan plan) {
+        sb.append('{');
+        for (int i = 0; i < plan.fieldCount; i++) {
+            sb.append(plan.jsonKeys[i]);
+
+            switch (plan.kinds[i]) {
+                case SerializationPlan.KIND_STRUCTURE:
+                    writeJSONObject(sb, record.getStructure(i), plan.children[i]);
+                    break;
+                case SerializationPlan.KIND_TABLE:
+                    JCoTable table = record.getTable(i);
+                    SerializationPlan rowPlan = plan.children[i];
+                    sb.append('[');
+                    for (int row = 0; row < table.getNumRows(); row++) {
+                        table.setRow(row);
+                        if (row > 0) {
+                            sb.append(',');
+                        }
+                        writeJSONObject(sb, table, rowPlan);
+                    }
+                    sb.append(']');
+                    break;
+                case SerializationPlan.KIND_NUMBER:
+                    String number = record.getString(i);
+                    if (number == null || number.isEmpty()) {
+                        sb.append("null");
+                    } else {
+                        sb.append(number);
+                    }
+                    break;
+                default:
+                    String value = record.getString(i);
+                    if (value == null) {
+                        sb.append("null");
+                    } else {
+                        writeJSONString(sb, value);
+                    }
+                    break;
+            }
+        }
+        sb.append('}');
+    }
+
+    /**
+     * Write a quoted and escaped JSON string.
+     *
+     * @param sb    The output buffer
+     * @param value The string to write
+     */
+    static void writeJSONString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                    break;
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Close an element. Elements without content are written as empty element.
+     *
+     * @param sb           The output buffer
+     * @param contentStart The position after the start tag
+     * @param startTag     The start tag of the element
+     * @param emptyTag     The empty element tag
+     * @param endTag       The end tag of the element
+     */
+    private static void endElement(StringBuilder sb, int contentStart, String startTag, String emptyTag,
+            String endTag) {
+        if (sb.length() == contentStart) {
+            sb.setLength(contentStart - startTag.length());
+            sb.append(emptyTag);
+        } else {
+            sb.append(endTag);
+        }
+    }
+
+    /**
+     * Convert a SAP field name to a XML element name.
+     *
+     * @param name The SAP field name
+     * @return The XML element name
+     */
+    static String escapeName(String name) {
+        return name.indexOf('/') < 0 ? name : name.replace("/", "_-");
+    }
+
+    private static StringBuilder acquireBuffer() {
+        StringBuilder sb = outputBuffer.get();
+        sb.setLength(0);
+        return sb;
+    }
+
+    private static void releaseBuffer(StringBuilder sb) {
+        if (sb.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+            outputBuffer.remove();
+        } else {
+            sb.setLength(0);
+        }
+    }
+
+}
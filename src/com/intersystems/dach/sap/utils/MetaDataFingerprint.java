@@ -0,0 +1,71 @@
+package com.intersystems.dach.sap.utils;
+
+import com.sap.conn.jco.JCoMetaData;
+
+/**
+ * This class calculates a structural hash of a {@link JCoMetaData} tree. The
+ * hash changes when a field is added, removed, renamed or changes its type or
+ * length, including the fields of nested structures and tables.
+ */
+public final class MetaDataFingerprint {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // Make this class static
+    private MetaDataFingerprint() {
+    }
+
+    /**
+     * Calculate the fingerprint of the given meta data.
+     *
+     * @param metaData The meta data, may be null
+     * @return The fingerprint
+     */
+    public static long of(JCoMetaData metaData) {
+        return hash(FNV_OFFSET_BASIS, metaData);
+    }
+
+    private static long hash(long h, JCoMetaData metaData) {
+        if (metaData == null) {
+            return mix(h, 0);
+        }
+        int fieldCount = metaData.getFieldCount();
+        h = mix(h, fieldCount);
+        for (int i = 0; i < fieldCount; i++) {
+            h = mix(h, metaData.getName(i));
+            int type = metaData.getType(i);
+            h = mix(h, type);
+            if (type == JCoMetaData.TYPE_STRUCTURE || type == JCoMetaData.TYPE_TABLE) {
+                h = hash(h, metaData.getRecordMetaData(i));
+            } else {
+                h = mix(h, metaData.getLength(i));
+                h = mix(h, metaData.getDecimals(i));
+            }
+        }
+        return h;
+    }
+
+    private static long mix(long h, int value) {
+        for (int shift = 0; shift < 32; shift += 8) {
+            h ^= (value >>> shift) & 0xff;
+            h *= FNV_PRIME;
+        }
+        return h;
+    }
+
+    private static long mix(long h, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            h ^= c & 0xff;
+            h *= FNV_PRIME;
+            h ^= c >>> 8;
+            h *= FNV_PRIME;
+        }
+        // terminate the string, so that adjacent names can not be shifted
+        h ^= 0xff;
+        h *= FNV_PRIME;
+        return h;
+    }
+
+}
@@ -0,0 +1,157 @@
+package com.intersystems.dach.sap.utils;
+
+import com.sap.conn.jco.JCoMetaData;
+
+/**
+ * A precompiled plan to serialize records of a single {@link JCoMetaData}.
+ * All names are escaped and all tags are rendered when the plan is compiled,
+ * so that the serializer only has to loop over flat arrays.
+ */
+final class SerializationPlan {
+
+    // Kinds of fields
+    static final byte KIND_VALUE = 0;
+    static final byte KIND_NUMBER = 1;
+    static final byte KIND_STRUCTURE = 2;
+    static final byte KIND_TABLE = 3;
+
+    final int fieldCount;
+    final byte[] kinds;
+
+    // XML tags of the fields
+    final String[] startTags;
+    final String[] endTags;
+    final String[] emptyTags;
+
+    // JSON keys of the fields including the separator and colon
+    final String[] jsonKeys;
+
+    // Plans of nested structures and table rows, null for other fields
+    final SerializationPlan[] children;
+
+    // Indices of all table fields
+    final int[] tableIndices;
+
+    private SerializationPlan(JCoMetaData metaData) {
+        fieldCount = metaData == null ? 0 : metaData.getFieldCount();
+        kinds = new byte[fieldCount];
+        startTags = new String[fieldCount];
+        endTags = new String[fieldCount];
+        emptyTags = new String[fieldCount];
+        jsonKeys = new String[fieldCount];
+        children = new SerializationPlan[fieldCount];
+
+        int tableCount = 0;
+        for (int i = 0; i < fieldCount; i++) {
+            String name = JCoSerializer.escapeName(metaData.getName(i));
+            startTags[i] = "<" + name + ">";
+            endTags[i] = "</" + name + ">";
+            emptyTags[i] = "<" + name + "/>";
+
+            StringBuilder jsonKey = new StringBuilder();
+            if (i > 0) {
+                jsonKey.append(',');
+            }
+            JCoSerializer.writeJSONString(jsonKey, metaData.getName(i));
+            jsonKeys[i] = jsonKey.append(':').toString();
+
+            kinds[i] = kindOf(metaData.getType(i));
+            if (kinds[i] == KIND_STRUCTURE || kinds[i] == KIND_TABLE) {
+                children[i] = new SerializationPlan(metaData.getRecordMetaData(i));
+            }
+            if (kinds[i] == KIND_TABLE) {
+                tableCount++;
+            }
+        }
+
+        tableIndices = new int[tableCount];
+        for (int i = 0, j = 0; i < fieldCount; i++) {
+            if (kinds[i] == KIND_TABLE) {
+                tableIndices[j++] = i;
+            }
+        }
+    }
+
+    /**
+     * Compile a plan for the given meta data.
+     *
+     * @param metaData The meta data, may be null
+     * @return The compiled plan
+     */
+    static SerializationPlan compile(JCoMetaData metaData) {
+        return new SerializationPlan(metaData);
+    }
+
+    private static byte kindOf(int type) {
+        switch (type) {
+            case JCoMetaData.TYPE_STRUCTURE:
+                return KIND_STRUCTURE;
+            case JCoMetaData.TYPE_TABLE:
+                return KIND_TABLE;
+            case JCoMetaData.TYPE_INT:
+            case JCoMetaData.TYPE_INT1:
+            case JCoMetaData.TYPE_INT2:
+            case JCoMetaData.TYPE_INT8:
+            case JCoMetaData.TYPE_FLOAT:
+            case JCoMetaData.TYPE_BCD:
+            case JCoMetaData.TYPE_DECF16:
+            case JCoMetaData.TYPE_DECF34:
+                return KIND_NUMBER;
+            default:
+                return KIND_VALUE;
+        }
+    }
+
+    /**
+     * The plan of a whole function including the rendered root element.
+     */
+    static final class FunctionPlan {
+
+        // The meta data the plan has been compiled from
+        final JCoMetaData metaData;
+        final long fingerprint;
+        final SerializationPlan root;
+
+        final String xmlRootStartTag;
+        final String xmlRootEndTag;
+        final String xmlRootEmptyTag;
+
+        FunctionPlan(JCoMetaData metaData, long fingerprint, SerializationPlan root, String functionName,
+                String namespace) {
+            this.metaData = metaData;
+            this.fingerprint = fingerprint;
+            this.root = root;
+
+            StringBuilder sb = new StringBuilder(XMLUtils.XMLHEADER).append('<').append(functionName);
+            if (!namespace.isEmpty()) {
+                sb.append(" xmlns=\"");
+                XMLUtils.escape(sb, namespace, true);
+                sb.append('"');
+            }
+            String rootTag = sb.toString();
+            xmlRootStartTag = rootTag + ">";
+            xmlRootEmptyTag = rootTag + "/>";
+            xmlRootEndTag = "</" + functionName + ">";
+        }
+
+        /**
+         * Create a copy of this plan for other meta data with the same structure.
+         *
+         * @param metaData The new meta data
+         * @return The copy of the plan
+         */
+        FunctionPlan withMetaData(JCoMetaData metaData) {
+            return new FunctionPlan(metaData, this);
+        }
+
+        private FunctionPlan(JCoMetaData metaData, FunctionPlan plan) {
+            this.metaData = metaData;
+            this.fingerprint = plan.fingerprint;
+            this.root = plan.root;
+            this.xmlRootStartTag = plan.xmlRootStartTag;
+            this.xmlRootEndTag = plan.xmlRootEndTag;
+            this.xmlRootEmptyTag = plan.xmlRootEmptyTag;
+        }
+    }
+
+}
@@ -0,0 +1,441 @@
+package com.intersystems.dach.sap.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * A store for the transaction IDs (TIDs) of transactional RFC calls. The state
+ * of every TID is kept in an in-memory index and appended to a memory-mapped
+ * log file. Appends of concurrent threads are flushed to disk together (group
+ * commit). When most records belong to confirmed or rolled back TIDs, the log
+ * is compacted.
+ *
+ * Every record carries a sequence number. When the log is loaded, the record
+ * with the highest sequence number of a TID wins. The compacted log is written
+ * to a new file that replaces the log atomically, so no state is lost if the
+ * process stops during the compaction.
+ */
+public class TIDStore implements Closeable {
+
+    /**
+     * The states of a TID.
+     */
+    public enum State {
+        CREATED(1), EXECUTED(2), COMMITTED(3), CONFIRMED(4), ROLLED_BACK(5);
+
+        private final byte code;
+
+        State(int code) {
+            this.code = (byte) code;
+        }
+
+        /**
+         * @return true if the TID is not needed anymore after this state.
+         */
+        public boolean isFinal() {
+            return this == CONFIRMED || this == ROLLED_BACK;
+        }
+
+        /**
+         * @return true if the function has been executed for the TID.
+         */
+        public boolean isExecuted() {
+            return this == EXECUTED || this == COMMITTED || this == CONFIRMED;
+        }
+
+        private static State of(byte code) {
+            for (State state : values()) {
+                if (state.code == code) {
+                    return state;
+                }
+            }
+            return null;
+        }
+    }
+
+    // Record layout: state, TID length, TID, sequence number, checksum
+    static final int RECORD_SIZE = 48;
+    private static final int MAX_TID_LENGTH = 32;
+    private static final int TID_OFFSET = 2;
+    private static final int SEQUENCE_OFFSET = TID_OFFSET + MAX_TID_LENGTH;
+    private static final int CHECKSUM_OFFSET = SEQUENCE_OFFSET + 8;
+
+    // The log file grows by this number of records
+    private static final int GROWTH_RECORDS = 16384;
+
+    // The log is not compacted below this number of records
+    private static final int COMPACTION_MIN_RECORDS = 4096;
+
+    // Latest state and sequence number by TID
+    private final Map<String, Entry> index = new ConcurrentHashMap<String, Entry>();
+
+    // Extension of the file the compacted log is written to
+    private static final String COMPACTION_FILE_EXTENSION = ".compact";
+
+    // Lock order: flushLock before appendLock
+    private final Object appendLock = new Object();
+    private final Object flushLock = new Object();
+
+    private Path logPath;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int recordCount;
+    private int liveCount;
+    private long lastSequence;
+    private volatile long flushedSequence;
+
+    // The log is compacted once it has this number of records
+    private int compactionMinRecords = COMPACTION_MIN_RECORDS;
+
+    /**
+     * Open a TID store. If the log file exists, the states are loaded from it.
+     *
+     * @param logPath The path of the log file or null for a store that is only
+     *                kept in memory
+     * @throws IOException If the log file could not be opened
+     */
+    public TIDStore(Path logPath) throws IOException {
+        if (logPath == null) {
+            return;
+        }
+        this.logPath = logPath;
+
+        // a compaction that has not been finished is discarded, the log is still complete
+        Files.deleteIfExists(getCompactionPath());
+
+        channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        int fileRecords = (int) Math.min(Integer.MAX_VALUE / RECORD_SIZE,
+                (channel.size() + RECORD_SIZE - 1) / RECORD_SIZE);
+        map(Math.max(fileRecords, GROWTH_RECORDS));
+        load();
+
+        if (isCompactionNeeded()) {
+            compact();
+        }
+    }
+
+    /**
+     * Get the state of a TID.
+     *
+     * @param tid The TID
+     * @return The state or null if the TID is unknown
+     */
+    public State getState(String tid) {
+        Entry entry = index.get(tid);
+        return entry == null ? null : entry.state;
+    }
+
+    /**
+     * Start a TID. If the function has already been executed for the TID, the
+     * TID is not started again.
+     *
+     * @param tid The TID
+     * @return true if the function has to be executed, false if the TID is a
+     *         duplicate
+     * @throws IOException If the state could not be written
+     */
+    public boolean begin(String tid) throws IOException {
+        // duplicates are answered from the index
+        State state = getState(tid);
+        if (state != null && state.isExecuted()) {
+            return false;
+        }
+        synchronized (appendLock) {
+            state = getState(tid);
+            if (state != null && state.isExecuted()) {
+                return false;
+            }
+            append(tid, State.CREATED);
+        }
+        return true;
+    }
+
+    /**
+     * Change the state of a TID. The EXECUTED and COMMITTED states are flushed
+     * to disk before this method returns.
+     *
+     * @param tid   The TID
+     * @param state The new state
+     * @throws IOException If the state could not be written
+     */
+    public void setState(String tid, State state) throws IOException {
+        long sequence;
+        synchronized (appendLock) {
+            sequence = append(tid, state);
+        }
+        if (state == State.EXECUTED || state == State.COMMITTED) {
+            flush(sequence);
+        }
+        if (state.isFinal() && isCompactionNeeded()) {
+            compact();
+        }
+    }
+
+    /**
+     * @return The number of TIDs that have not been confirmed or rolled back.
+     */
+    public int getOpenTIDCount() {
+        synchronized (appendLock) {
+            return liveCount;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        synchronized (flushLock) {
+            synchronized (appendLock) {
+                buffer.force();
+                channel.close();
+                channel = null;
+                buffer = null;
+            }
+        }
+    }
+
+    /**
+     * Append a record and update the index. Must be called with the append lock.
+     *
+     * @return The sequence number of the record
+     */
+    private long append(String tid, State state) throws IOException {
+        byte[] tidBytes = tid.getBytes(StandardCharsets.US_ASCII);
+        if (tidBytes.length == 0 || tidBytes.length > MAX_TID_LENGTH) {
+            throw new IllegalArgumentException("Invalid TID '" + tid + "'.");
+        }
+
+        long sequence = ++lastSequence;
+        if (channel == null && state.isFinal()) {
+            // without a log there is nothing to compact
+            Entry previous = index.remove(tid);
+            if (previous != null && !previous.state.isFinal()) {
+                liveCount--;
+            }
+            return sequence;
+        }
+
+        Entry previous = index.put(tid, new Entry(state, sequence));
+        if (previous == null || previous.state.isFinal()) {
+            liveCount += state.isFinal() ? 0 : 1;
+        } else if (state.isFinal()) {
+            liveCount--;
+        }
+
+        if (channel != null) {
+            if (recordCount == capacity) {
+                map(capacity + GROWTH_RECORDS);
+            }
+            writeRecord(buffer, recordCount * RECORD_SIZE, tidBytes, state, sequence);
+            recordCount++;
+        }
+        return sequence;
+    }
+
+    /**
+     * Flush the log to disk up to the given sequence number. The first thread
+     * that has to flush flushes the records of all waiting threads.
+     */
+    private void flush(long sequence) throws IOException {
+        if (channel == null || flushedSequence >= sequence) {
+            return;
+        }
+        synchronized (flushLock) {
+            if (flushedSequence >= sequence) {
+                // flushed by another thread
+                return;
+            }
+            long target;
+            MappedByteBuffer current;
+            synchronized (appendLock) {
+                if (channel == null) {
+                    throw new IOException("TID store is closed.");
+                }
+                target = lastSequence;
+                current = buffer;
+            }
+            current.force();
+            flushedSequence = target;
+        }
+    }
+
+    private boolean isCompactionNeeded() {
+        synchronized (appendLock) {
+            return channel != null && recordCount >= compactionMinRecords && recordCount > 2 * liveCount;
+        }
+    }
+
+    /**
+     * Drop the confirmed and rolled back TIDs. The remaining records are written
+     * to a new file, which is flushed to disk and then moved over the log. If
+     * the log can't be replaced, it is kept as it is and the compaction is
+     * tried again when more records have been appended.
+     */
+    private void compact() throws IOException {
+        synchronized (flushLock) {
+            synchronized (appendLock) {
+                if (channel == null) {
+                    return;
+                }
+                Path compactionPath = getCompactionPath();
+                int position = 0;
+                try (FileChannel compacted = FileChannel.open(compactionPath, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    ByteBuffer records = ByteBuffer.allocate(RECORD_SIZE * 256);
+                    for (Map.Entry<String, Entry> e : index.entrySet()) {
+                        if (e.getValue().state.isFinal()) {
+                            continue;
+                        }
+                        if (!records.hasRemaining()) {
+                            write(compacted, records);
+                        }
+                        records.put(createRecord(e.getKey().getBytes(StandardCharsets.US_ASCII),
+                                e.getValue().state, e.getValue().sequence));
+                        position++;
+                    }
+                    write(compacted, records);
+                    compacted.force(true);
+                }
+
+                try {
+                    Files.move(compactionPath, logPath, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    // the log stays valid, e.g. if the file system does not allow to replace a mapped file
+                    Files.deleteIfExists(compactionPath);
+                    compactionMinRecords = recordCount + COMPACTION_MIN_RECORDS;
+                    return;
+                }
+
+                Iterator<Map.Entry<String, Entry>> iterator = index.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().getValue().state.isFinal()) {
+                        iterator.remove();
+                    }
+                }
+                channel.close();
+                channel = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                map(position + GROWTH_RECORDS);
+                recordCount = position;
+                liveCount = position;
+                compactionMinRecords = COMPACTION_MIN_RECORDS;
+                flushedSequence = lastSequence;
+            }
+        }
+    }
+
+    private Path getCompactionPath() {
+        return logPath.resolveSibling(logPath.getFileName() + COMPACTION_FILE_EXTENSION);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer records) throws IOException {
+        records.flip();
+        while (records.hasRemaining()) {
+            channel.write(records);
+        }
+        records.clear();
+    }
+
+    /**
+     * Load the records of the log into the index.
+     */
+    private void load() {
+        CRC32 crc = new CRC32();
+        byte[] record = new byte[RECORD_SIZE];
+        int count = 0;
+        while (count < capacity) {
+            buffer.position(count * RECORD_SIZE);
+            buffer.get(record);
+            State state = State.of(record[0]);
+            int tidLength = record[1];
+            if (state == null || tidLength <= 0 || tidLength > MAX_TID_LENGTH) {
+                break;
+            }
+            crc.reset();
+            crc.update(record, 0, CHECKSUM_OFFSET);
+            ByteBuffer recordBuffer = ByteBuffer.wrap(record);
+            if ((int) crc.getValue() != recordBuffer.getInt(CHECKSUM_OFFSET)) {
+                // the record has not been written completely
+                break;
+            }
+            String tid = new String(record, TID_OFFSET, tidLength, StandardCharsets.US_ASCII);
+            long sequence = recordBuffer.getLong(SEQUENCE_OFFSET);
+            Entry entry = index.get(tid);
+            if (entry == null || entry.sequence < sequence) {
+                index.put(tid, new Entry(state, sequence));
+            }
+            lastSequence = Math.max(lastSequence, sequence);
+            count++;
+        }
+
+        // clear a record that has not been written completely and everything after it
+        for (int i = count * RECORD_SIZE; i < capacity * RECORD_SIZE && buffer.get(i) != 0; i += RECORD_SIZE) {
+            for (int j = i; j < i + RECORD_SIZE; j++) {
+                buffer.put(j, (byte) 0);
+            }
+        }
+        buffer.position(0);
+
+        recordCount = count;
+        for (Entry entry : index.values()) {
+            if (!entry.state.isFinal()) {
+                liveCount++;
+            }
+        }
+        flushedSequence = lastSequence;
+    }
+
+    /**
+     * Map the log file with the given capacity.
+     */
+    private void map(int records) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) records * RECORD_SIZE);
+        capacity = records;
+    }
+
+    private static void writeRecord(MappedByteBuffer buffer, int offset, byte[] tid, State state, long sequence) {
+        byte[] record = createRecord(tid, state, sequence);
+        for (int i = 0; i < RECORD_SIZE; i++) {
+            buffer.put(offset + i, record[i]);
+        }
+    }
+
+    private static byte[] createRecord(byte[] tid, State state, long sequence) {
+        byte[] record = new byte[RECORD_SIZE];
+        ByteBuffer recordBuffer = ByteBuffer.wrap(record);
+        record[0] = state.code;
+        record[1] = (byte) tid.length;
+        System.arraycopy(tid, 0, record, TID_OFFSET, tid.length);
+        recordBuffer.putLong(SEQUENCE_OFFSET, sequence);
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, CHECKSUM_OFFSET);
+        recordBuffer.putInt(CHECKSUM_OFFSET, (int) crc.getValue());
+        return record;
+    }
+
+    private static final class Entry {
+
+        private final State state;
+        private final long sequence;
+
+        private Entry(State state, long sequence) {
+            this.state = state;
+            this.sequence = sequence;
+        }
+    }
+
+}
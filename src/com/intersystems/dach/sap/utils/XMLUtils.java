@@ -1,184 +1,62 @@
 package com.intersystems.dach.sap.utils;
 
-import java.io.IOException;
-import java.io.StringReader;
-import java.io.StringWriter;
-import java.util.ArrayList;
-import java.util.List;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
-
-import com.intersystems.dach.sap.SAPServerArgs;
-
 /**
- * A class to parse XML
+ * Helpers to write XML
  */
 public class XMLUtils {
 
-    private SAPServerArgs sapServerArgs;
-
-    public XMLUtils(SAPServerArgs sapServerArgs) {
-        this.sapServerArgs = sapServerArgs;
+    private XMLUtils() {
     }
 
     // XML header
-    private static final String XMLHEADER = "version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"";
+    public static final String XMLHEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>";
 
     /**
-     * Parse the given XML String in a correct format and returns it as String
-     * 
-     * @param xml          - XML in String format
-     * @param functionName - name of the function
-     * @return XML in String format
-     * @throws ParserConfigurationException
-     * @throws SAXException
-     * @throws IOException
-     * @throws TransformerException
+     * Escape text and append it to a buffer.
+     *
+     * @param sb          - the buffer to append to
+     * @param text        - the text to escape
+     * @param isAttribute - if true, the text is escaped as an attribute value
      */
-    public String convert(String xml, String functionName)
-            throws ParserConfigurationException, SAXException, IOException, TransformerException {
-        // get document
-        Document doc = convertStringToXMLDocument(xml);
-
-        // rename parent node
-        if (!doc.getFirstChild().getNodeName().equals(functionName)) {
-            doc.renameNode(doc.getFirstChild(),
-                    sapServerArgs.getConvertedXMLNamespace(functionName),
-                    functionName);
-        }
-
-        // add header
-        doc.insertBefore(doc.createProcessingInstruction("xml", XMLHEADER),
-                doc.getFirstChild());
-
-        if (sapServerArgs.isFlattenTablesItems()) {
-            List<Node> nodesToRemove = new ArrayList<Node>();
-            replaceItem(doc.getDocumentElement(), doc, nodesToRemove);
-
-            // remove nodes
-            removeNodes(nodesToRemove);
-        }
-
-        // convert document to string
-        return convertXMLDocumentToString(doc);
-    }
-
-    /**
-     * Convert String to XML Document
-     * 
-     * @param xmlString - XML in String format
-     * @return XML Document
-     * @throws ParserConfigurationException
-     * @throws SAXException
-     * @throws IOException
-     */
-    private Document convertStringToXMLDocument(String xmlString)
-            throws ParserConfigurationException, SAXException, IOException {
-        // Parser that produces DOM object trees from XML content
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-
-        // API to obtain DOM Document instance
-        DocumentBuilder builder = null;
-        // Create DocumentBuilder with default configuration
-        builder = factory.newDocumentBuilder();
-
-        // Parse the content to Document object
-        return builder.parse(new InputSource(new StringReader(xmlString)));
-    }
-
-    /**
-     * Convert XML Document to String
-     * 
-     * @param doc - XML Document
-     * @return XML in String format
-     * @throws TransformerException
-     */
-    private String convertXMLDocumentToString(Document doc) throws TransformerException {
-        TransformerFactory tf = TransformerFactory.newInstance();
-        Transformer transformer = tf.newTransformer();
-        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-        StringWriter writer = new StringWriter();
-        transformer.transform(new DOMSource(doc), new StreamResult(writer));
-        return writer.getBuffer().toString();
-    }
-
-    /**
-     * Replace item with parent node name
-     * 
-     * @param node        - current node
-     * @param doc         - XML Document
-     * @param removeNodes - list of nodes to remove later
-     */
-    private void replaceItem(Node node, Document doc, List<Node> removeNodes) {
-
-        if (node.getNodeName().equals("item")) {
-            // rename item to parent node name
-            doc.renameNode(node, null, node.getParentNode().getNodeName());
-            // add parent node to remove list
-            if (!removeNodes.contains(node.getParentNode())) {
-                removeNodes.add(node.getParentNode());
-            }
-        }
-
-        // iterate through child nodes
-        NodeList nodeList = node.getChildNodes();
-        for (int i = 0; i < nodeList.getLength(); i++) {
-            Node currentNode = nodeList.item(i);
-            if (currentNode.getNodeType() == Node.ELEMENT_NODE) {
-                // calls this method for all the children which is Element
-                replaceItem(currentNode, doc, removeNodes);
-            }
-        }
-    }
-
-    /**
-     * Remove nodes from XML Document
-     * 
-     * @param nodesToRemove - list of nodes to remove
-     */
-    private void removeNodes(List<Node> nodesToRemove) {
-        if (nodesToRemove.isEmpty()) {
-            return;
-        }
-
-        List<Node> childs = new ArrayList<Node>();
-
-        // get child of removed nodes
-        for (Node node : nodesToRemove) {
-
-            NodeList nodeList = node.getChildNodes();
-            for (int i = 0; i < nodeList.getLength(); i++) {
-                Node currentNode = nodeList.item(i);
-
-                if (currentNode.getNodeType() == Node.ELEMENT_NODE) {
-                    childs.add(currentNode);
-                }
+    public static void escape(StringBuilder sb, String text, boolean isAttribute) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                case '\r':
+                    sb.append("&#13;");
+                    break;
+                case '"':
+                    sb.append(isAttribute ? "&quot;" : "\"");
+                    break;
+                case '\n':
+                    sb.append(isAttribute ? "&#10;" : "\n");
+                    break;
+                case '\t':
+                    sb.append(isAttribute ? "&#9;" : "\t");
+                    break;
+                default:
+                    if (Character.isHighSurrogate(c) && i + 1 < length
+                            && Character.isLowSurrogate(text.charAt(i + 1))) {
+                        sb.append("&#").append(Character.toCodePoint(c, text.charAt(i + 1))).append(';');
+                        i++;
+                    } else if (c >= 0x7F && c <= 0x9F) {
+                        sb.append("&#").append((int) c).append(';');
+                    } else {
+                        sb.append(c);
+                    }
+                    break;
             }
         }
-
-        // appent child to new parent
-        for (Node node : childs) {
-            node.getParentNode().getParentNode().appendChild(node);
-        }
-
-        // remove nodes
-        for (Node node : nodesToRemove) {
-            node.getParentNode().removeChild(node);
-        }
     }
 
 }
@@ -1,16 +1,26 @@
 package com.intersystems.dach.sap.utils;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Pattern;
+
 /**
  * A class that represents a XSD schema
  */
 public class XSDSchema {
 
+    // The generation timestamp is not part of the schema content
+    private static final Pattern GENERATED_AT_COMMENT = Pattern.compile("<!--Generated at [^>]*-->");
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     private final String schema;
-    private final boolean schemaComplete;
+    private final String hash;
 
-    public XSDSchema(String schema, boolean schemaComplete) {
+    public XSDSchema(String schema) {
         this.schema = schema;
-        this.schemaComplete = schemaComplete;
+        this.hash = hash(schema);
     }
 
     /**
@@ -23,12 +33,38 @@ public class XSDSchema {
     }
 
     /**
-     * Get the schemaCompleteFlag
+     * Get the hash of the schema content. The hash identifies the schema when
+     * it is referenced instead of passed.
+     * 
+     * @return the hash
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * Calculate the hash of a schema. The generation timestamp is ignored, so a
+     * regenerated schema has the same hash as long as its content is unchanged.
      * 
-     * @return the schemaCompleteFlag
+     * @param schema the schema
+     * @return the SHA-256 hash as hex String
      */
-    public boolean isSchemaComplete() {
-        return schemaComplete;
+    public static String hash(String schema) {
+        String content = GENERATED_AT_COMMENT.matcher(schema).replaceFirst("");
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+        byte[] hash = digest.digest(content.getBytes(StandardCharsets.UTF_8));
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xf];
+        }
+        return new String(hex);
     }
 
 }
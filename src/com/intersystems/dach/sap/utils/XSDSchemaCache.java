@@ -0,0 +1,202 @@
+package com.intersystems.dach.sap.utils;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sap.conn.jco.JCoMetaData;
+
+/**
+ * A bounded cache for generated XSD schemas. Schemas are cached by function
+ * name, parameter direction and the fingerprint of the parameter meta data, so
+ * a changed function signature results in a new schema. If several threads
+ * request the same missing schema at once, it is generated only once. When the
+ * cache is full, the least recently used schema is evicted.
+ */
+public class XSDSchemaCache {
+
+    private final int maxSize;
+
+    private final Map<CacheKey, CacheEntry> entries = new ConcurrentHashMap<CacheKey, CacheEntry>();
+
+    // Last fingerprint by function name and parameter direction
+    private final Map<String, Fingerprint> fingerprints = new ConcurrentHashMap<String, Fingerprint>();
+
+    // Logical clock for the least recently used order
+    private final AtomicLong clock = new AtomicLong();
+
+    /**
+     * Create a new cache.
+     *
+     * @param maxSize The maximum number of schemas to keep.
+     */
+    public XSDSchemaCache(int maxSize) {
+        this.maxSize = Math.max(1, maxSize);
+    }
+
+    /**
+     * Get a schema from the cache. If the schema is not cached yet, it is
+     * generated by the given generator. Concurrent calls for the same schema
+     * wait for the same generation.
+     *
+     * @param functionName      The name of the function
+     * @param isImportParameter The parameter direction
+     * @param metaData          The meta data of the parameter list
+     * @param generator         The generator that creates the schema
+     * @return The schema
+     * @throws ExecutionException   If the generator failed
+     * @throws InterruptedException If the thread was interrupted while waiting
+     *                              for the generation
+     */
+    public XSDSchema get(String functionName, boolean isImportParameter, JCoMetaData metaData,
+            Callable<XSDSchema> generator) throws ExecutionException, InterruptedException {
+        CacheKey key = new CacheKey(functionName, isImportParameter,
+                getFingerprint(functionName, isImportParameter, metaData));
+
+        CacheEntry entry = entries.get(key);
+        if (entry == null) {
+            CacheEntry newEntry = new CacheEntry(generator);
+            entry = entries.putIfAbsent(key, newEntry);
+            if (entry == null) {
+                // this thread won, generate the schema
+                entry = newEntry;
+                entry.task.run();
+                evictIfFull();
+            }
+        }
+        entry.lastAccess = clock.incrementAndGet();
+
+        try {
+            return entry.task.get();
+        } catch (ExecutionException e) {
+            // do not keep failures, the next call tries again
+            entries.remove(key, entry);
+            throw e;
+        }
+    }
+
+    /**
+     * Remove all schemas of a function from the cache.
+     *
+     * @param functionName The name of the function
+     */
+    public void invalidate(String functionName) {
+        fingerprints.remove(fingerprintKey(functionName, true));
+        fingerprints.remove(fingerprintKey(functionName, false));
+        for (CacheKey key : entries.keySet()) {
+            if (key.functionName.equals(functionName)) {
+                entries.remove(key);
+            }
+        }
+    }
+
+    /**
+     * @return The number of cached schemas.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Get the fingerprint of the meta data. The last fingerprint is reused as
+     * long as the function has the same meta data object, so the meta data is
+     * only walked when it has been reloaded.
+     */
+    private long getFingerprint(String functionName, boolean isImportParameter, JCoMetaData metaData) {
+        String key = fingerprintKey(functionName, isImportParameter);
+        Fingerprint fingerprint = fingerprints.get(key);
+        if (fingerprint != null && fingerprint.metaData == metaData) {
+            return fingerprint.value;
+        }
+
+        fingerprint = new Fingerprint(metaData, MetaDataFingerprint.of(metaData));
+        fingerprints.put(key, fingerprint);
+        return fingerprint.value;
+    }
+
+    private static String fingerprintKey(String functionName, boolean isImportParameter) {
+        return (isImportParameter ? "I:" : "E:") + functionName;
+    }
+
+    /**
+     * Evict the least recently used schemas till the size bound is met.
+     */
+    private void evictIfFull() {
+        while (entries.size() > maxSize) {
+            CacheKey oldestKey = null;
+            CacheEntry oldestEntry = null;
+            for (Map.Entry<CacheKey, CacheEntry> e : entries.entrySet()) {
+                CacheEntry candidate = e.getValue();
+                // schemas that are still generated are not evicted
+                if (candidate.task.isDone()
+                        && (oldestEntry == null || candidate.lastAccess < oldestEntry.lastAccess)) {
+                    oldestKey = e.getKey();
+                    oldestEntry = candidate;
+                }
+            }
+            if (oldestKey == null) {
+                return;
+            }
+            entries.remove(oldestKey, oldestEntry);
+        }
+    }
+
+    private static final class CacheEntry {
+
+        private final FutureTask<XSDSchema> task;
+        private volatile long lastAccess;
+
+        private CacheEntry(Callable<XSDSchema> generator) {
+            this.task = new FutureTask<XSDSchema>(generator);
+        }
+    }
+
+    private static final class Fingerprint {
+
+        private final JCoMetaData metaData;
+        private final long value;
+
+        private Fingerprint(JCoMetaData metaData, long value) {
+            this.metaData = metaData;
+            this.value = value;
+        }
+    }
+
+    private static final class CacheKey {
+
+        private final String functionName;
+        private final boolean isImportParameter;
+        private final long fingerprint;
+
+        private CacheKey(String functionName, boolean isImportParameter, long fingerprint) {
+            this.functionName = functionName;
+            this.isImportParameter = isImportParameter;
+            this.fingerprint = fingerprint;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) obj;
+            return fingerprint == other.fingerprint && isImportParameter == other.isImportParameter
+                    && functionName.equals(other.functionName);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = functionName.hashCode();
+            h = 31 * h + (isImportParameter ? 1 : 0);
+            h = 31 * h + (int) (fingerprint ^ (fingerprint >>> 32));
+            return h;
+        }
+    }
+
+}
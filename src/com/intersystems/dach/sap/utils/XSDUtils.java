@@ -1,7 +1,5 @@
 package com.intersystems.dach.sap.utils;
 
-import java.io.IOException;
-
 import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
@@ -14,36 +12,31 @@ import javax.xml.transform.stream.StreamResult;
 import org.w3c.dom.Comment;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.xml.sax.SAXException;
 
 import java.io.StringWriter;
-import java.util.Hashtable;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import com.intersystems.dach.sap.SAPServerArgs;
 import com.sap.conn.jco.JCoFunction;
 import com.sap.conn.jco.JCoMetaData;
 import com.sap.conn.jco.JCoParameterList;
-import com.sap.conn.jco.JCoRecord;
-import com.sap.conn.jco.JCoStructure;
-import com.sap.conn.jco.JCoTable;
 
 /**
  * This class is used to create an XSD document from a JCoFunction.
  */
 public class XSDUtils {
 
-    private Map<String, XSDSchema> schemaCache;
+    // Maximum number of cached schemas
+    private static final int MAX_CACHED_SCHEMAS = 256;
 
-    private SAPServerArgs sapServerArgs;
+    private XSDSchemaCache schemaCache;
 
-    private Map<Document, Boolean> documentStatusMap;
+    private SAPServerArgs sapServerArgs;
 
     public XSDUtils(SAPServerArgs sapServerArgs) {
         this.sapServerArgs = sapServerArgs;
-        this.schemaCache = new Hashtable<String, XSDSchema>();
-        this.documentStatusMap = new Hashtable<Document, Boolean>();
-
+        this.schemaCache = new XSDSchemaCache(MAX_CACHED_SCHEMAS);
     }
 
     /**
@@ -55,27 +48,61 @@ public class XSDUtils {
      * @param force             Re-create XSD even if it's already in cache.
      * @return The XSD String
      * @throws ParserConfigurationException
-     * @throws SAXException
-     * @throws IOException
      * @throws TransformerException
+     * @throws InterruptedException
      */
-    public XSDSchema createXSD(JCoFunction function, boolean isImportParameter, boolean force)
-            throws ParserConfigurationException, SAXException, IOException, TransformerException {
+    public XSDSchema createXSD(final JCoFunction function, final boolean isImportParameter, boolean force)
+            throws ParserConfigurationException, TransformerException, InterruptedException {
+
+        if (force) {
+            schemaCache.invalidate(function.getName());
+        }
+
+        JCoParameterList parameterList = (isImportParameter ? function
+                .getImportParameterList() : function.getExportParameterList());
+        JCoMetaData metadata = parameterList == null ? null : parameterList.getMetaData();
 
-        if (!force && schemaCache.containsKey(function.getName())) {
-            return schemaCache.get(function.getName());
+        try {
+            return schemaCache.get(function.getName(), isImportParameter, metadata, new Callable<XSDSchema>() {
+                @Override
+                public XSDSchema call() throws Exception {
+                    return generateXSD(function, isImportParameter);
+                }
+            });
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ParserConfigurationException) {
+                throw (ParserConfigurationException) cause;
+            }
+            if (cause instanceof TransformerException) {
+                throw (TransformerException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
         }
+    }
 
+    /**
+     * This method generates the XSD String of a JCoFunction.
+     * 
+     * @param function          The JCoFunction to convert
+     * @param isImportParameter If true, the import parameter list will be used,
+     *                          otherwise the export parameter list
+     * @return The XSD String
+     * @throws ParserConfigurationException
+     * @throws TransformerException
+     */
+    private XSDSchema generateXSD(JCoFunction function, boolean isImportParameter)
+            throws ParserConfigurationException, TransformerException {
         Document doc = createXSDDocument(function, isImportParameter);
-        this.documentStatusMap.put(doc, true);
         TransformerFactory transformerFactory = TransformerFactory.newInstance();
         Transformer transformer = transformerFactory.newTransformer();
         StringWriter stringWriter = new StringWriter();
         transformer.transform(new DOMSource(doc), new StreamResult(stringWriter));
         String xsdString = stringWriter.toString();
-        XSDSchema xsdSchema = new XSDSchema(xsdString, documentStatusMap.remove(doc));
-        schemaCache.put(function.getName(), xsdSchema);
-        return xsdSchema;
+        return new XSDSchema(xsdString);
     }
 
     /**
@@ -86,8 +113,6 @@ public class XSDUtils {
      *                          otherwise the export parameter list
      * @return The XSD document
      * @throws ParserConfigurationException
-     * @throws SAXException
-     * @throws IOException
      * @throws TransformerException
      */
     private Document createXSDDocument(JCoFunction function, boolean isImportParameter)
@@ -147,46 +172,43 @@ public class XSDUtils {
         JCoParameterList parameterList = (isImportParameter ? function
                 .getImportParameterList() : function.getExportParameterList());
 
-        JCoMetaData metadata = parameterList.getMetaData();
-
-        for (int i = 0; i < metadata.getFieldCount(); i++) {
-            sequence.appendChild(convertElement(i, metadata, doc, parameterList, null));
+        // functions without parameters have no parameter list
+        if (parameterList != null) {
+            JCoMetaData metadata = parameterList.getMetaData();
+            for (int i = 0; i < metadata.getFieldCount(); i++) {
+                sequence.appendChild(convertElement(i, metadata, doc));
+            }
         }
 
         return doc;
     }
 
     /**
-     * This method converts a JCoStructure to an XSD document.
+     * This method converts the meta data of a structure to an XSD document.
      * 
-     * @param structure     The JCoStructure to convert
-     * @param root          The root element of the XSD document
-     * @param doc           The XSD document
-     * @param parameterList The parameter list of the JCoFunction
+     * @param structMetadata The meta data of the structure
+     * @param root           The root element of the XSD document
+     * @param doc            The XSD document
      */
-    private void convertStructure(JCoStructure structure, Element root, Document doc,
-            JCoParameterList parameterList) {
+    private void convertStructure(JCoMetaData structMetadata, Element root, Document doc) {
         // add sequence
         Element sequence = doc.createElement("xs:sequence");
         root.appendChild(sequence);
         root = sequence;
 
-        JCoMetaData structMetadata = structure.getMetaData();
         for (int i = 0; i < structMetadata.getFieldCount(); i++) {
-            root.appendChild(convertElement(i, structMetadata, doc, parameterList, structure));
+            root.appendChild(convertElement(i, structMetadata, doc));
         }
     }
 
     /**
-     * This method converts a JCoTable to an XSD document.
+     * This method converts the meta data of a table row to an XSD document.
      * 
-     * @param table         The JCoTable to convert
+     * @param tableMetadata The meta data of the table row
      * @param root          The root element of the XSD document
      * @param doc           The XSD document
-     * @param parameterList The parameter list of the JCoFunction
      */
-    private void convertTable(JCoTable table, Element root, Document doc,
-            JCoParameterList parameterList, String name) {
+    private void convertTable(JCoMetaData tableMetadata, Element root, Document doc) {
 
         // add sequence
         Element sequence = doc.createElement("xs:sequence");
@@ -212,24 +234,8 @@ public class XSDUtils {
             root = sequenceItem;
         }
 
-        // TODO
-        if (table.isEmpty()) {
-
-            Element anyElement = doc.createElement("xs:any");
-            anyElement.setAttribute("maxOccurs", "unbounded");
-            anyElement.setAttribute("minOccurs", "0");
-
-            anyElement.setAttribute("processContents", "skip");
-
-            root.appendChild(anyElement);
-            documentStatusMap.put(doc, false);
-            sapServerArgs.getTraceManager().traceMessage("Table " + name + " is empty, generic XSD element is used!");
-            return;
-        }
-
-        JCoMetaData tableMetadata = table.getMetaData();
         for (int i = 0; i < tableMetadata.getFieldCount(); i++) {
-            root.appendChild(convertElement(i, tableMetadata, doc, parameterList, table));
+            root.appendChild(convertElement(i, tableMetadata, doc));
         }
     }
 
@@ -239,11 +245,9 @@ public class XSDUtils {
      * @param i             The index of the element
      * @param metadata      The JCoMetaData
      * @param doc           The XSD document
-     * @param parameterList The parameter list of the JCoFunction
      * @return The XSD element
      */
-    private Element convertElement(int i, JCoMetaData metadata, Document doc, JCoParameterList parameterList,
-            JCoRecord parent) {
+    private Element convertElement(int i, JCoMetaData metadata, Document doc) {
         String name = metadata.getName(i).replace("/", "_-");
         String description = metadata.getDescription(i);
 
@@ -326,8 +330,7 @@ public class XSDUtils {
 
                 Element complexTypeStruct = doc.createElement("xs:complexType");
 
-                JCoStructure struct = parent == null ? parameterList.getStructure(name) : parent.getStructure(name);
-                convertStructure(struct, complexTypeStruct, doc, parameterList);
+                convertStructure(metadata.getRecordMetaData(i), complexTypeStruct, doc);
 
                 element.appendChild(complexTypeStruct);
                 break;
@@ -342,8 +345,7 @@ public class XSDUtils {
 
                 Element complexTypeTable = doc.createElement("xs:complexType");
 
-                JCoTable table = parent == null ? parameterList.getTable(name) : parent.getTable(name);
-                convertTable(table, complexTypeTable, doc, parameterList, name);
+                convertTable(metadata.getRecordMetaData(i), complexTypeTable, doc);
 
                 element.appendChild(complexTypeTable);
                 break;
@@ -1,48 +1,285 @@
 package com.intersystems.dach.utils;
 
-import java.util.ArrayList;
 import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 import com.intersystems.dach.sap.handlers.SAPServerTraceMsgHandler;
 
 /**
  * This class manages the trace message handlers.
- * 
+ *
+ * Messages are only built if tracing is enabled for their category and level.
+ * Use {@link #isEnabled(Category, Level)}, a message supplier or a template with
+ * "{}" placeholders, so that a disabled trace costs nothing.
+ *
+ * Requests can be sampled per function. The request and payload messages of a
+ * request that is not sampled are not traced.
+ *
  * @author Philipp Bonin
  * @version 1.0
  */
 public class TraceManager {
 
-    private Collection<SAPServerTraceMsgHandler> traceHandlers = new ArrayList<SAPServerTraceMsgHandler>();
+    /**
+     * The category of a trace message.
+     */
+    public enum Category {
+        SERVER, REQUEST, TRANSACTION, SCHEMA, PAYLOAD
+    }
+
+    /**
+     * The level of a trace message.
+     */
+    public enum Level {
+        INFO, DEBUG
+    }
+
+    private static final String PLACEHOLDER = "{}";
+    private static final int LEVEL_COUNT = Level.values().length;
+
+    private Collection<SAPServerTraceMsgHandler> traceHandlers = new CopyOnWriteArrayList<SAPServerTraceMsgHandler>();
+
+    // Enabled categories and level
+    private EnumSet<Category> categories = EnumSet.allOf(Category.class);
+    private Level level = Level.DEBUG;
+
+    // One bit per category and level, 0 if no handler is registered
+    private volatile int enabledMask;
+
+    // Every n-th request of a function is traced
+    private volatile Map<String, Integer> sampleRates = new HashMap<String, Integer>();
+    private volatile int defaultSampleRate = 1;
+    private final Map<String, AtomicLong> requestCounters = new ConcurrentHashMap<String, AtomicLong>();
+
+    // Whether the request of the current thread is sampled
+    private final ThreadLocal<Boolean> requestSampled = new ThreadLocal<Boolean>();
 
     /**
      * Register a trace message handler.
-     * 
+     *
      * @param traceMsgHandler
      * @return true, if registration was successful.
      */
     public boolean registerTraceMsgHandler(SAPServerTraceMsgHandler traceMsgHandler) {
-        return traceHandlers.add(traceMsgHandler);
+        boolean result = traceHandlers.add(traceMsgHandler);
+        updateEnabledMask();
+        return result;
     }
 
     /**
      * Unregister a trace message handler.
-     * 
+     *
      * @param traceMsgHandler
      * @return true, if unregistration was successful.
      */
     public boolean unregisterTraceMsgHandler(SAPServerTraceMsgHandler traceMsgHandler) {
-        return traceHandlers.remove(traceMsgHandler);
+        boolean result = traceHandlers.remove(traceMsgHandler);
+        updateEnabledMask();
+        return result;
+    }
+
+    /**
+     * Configure which messages are traced. By default all messages are traced.
+     *
+     * @param categories The categories to trace.
+     * @param level      The highest level to trace.
+     */
+    public synchronized void configure(Collection<Category> categories, Level level) {
+        this.categories = categories.isEmpty() ? EnumSet.noneOf(Category.class) : EnumSet.copyOf(categories);
+        this.level = level;
+        updateEnabledMask();
+    }
+
+    /**
+     * Configure the sampling of requests. A rate of n traces every n-th request
+     * of a function.
+     *
+     * @param sampleRates       The sampling rates by function name.
+     * @param defaultSampleRate The sampling rate of all other functions.
+     */
+    public void configureSampling(Map<String, Integer> sampleRates, int defaultSampleRate) {
+        this.sampleRates = new HashMap<String, Integer>(sampleRates);
+        this.defaultSampleRate = Math.max(1, defaultSampleRate);
+    }
+
+    /**
+     * Decide if the request that the current thread starts to handle is traced.
+     * The request and payload messages of the thread follow this decision until
+     * the next request starts.
+     *
+     * @param functionName The name of the function.
+     * @return true, if the request is traced.
+     */
+    public boolean sampleRequest(String functionName) {
+        if (!isEnabled()) {
+            return false;
+        }
+        Integer rate = sampleRates.get(functionName);
+        int sampleRate = rate == null ? defaultSampleRate : Math.max(1, rate);
+        boolean sampled = true;
+        if (sampleRate > 1) {
+            AtomicLong counter = requestCounters.get(functionName);
+            if (counter == null) {
+                requestCounters.putIfAbsent(functionName, new AtomicLong());
+                counter = requestCounters.get(functionName);
+            }
+            sampled = counter.getAndIncrement() % sampleRate == 0;
+        }
+        requestSampled.set(sampled ? Boolean.TRUE : Boolean.FALSE);
+        return sampled;
+    }
+
+    /**
+     * Check if any message is traced.
+     *
+     * @return true, if a handler is registered and a category is enabled.
+     */
+    public boolean isEnabled() {
+        return enabledMask != 0;
+    }
+
+    /**
+     * Check if messages of a category and level are traced.
+     *
+     * @param category The category.
+     * @param level    The level.
+     * @return true, if the messages are traced.
+     */
+    public boolean isEnabled(Category category, Level level) {
+        if ((enabledMask & bit(category, level)) == 0) {
+            return false;
+        }
+        if (category == Category.REQUEST || category == Category.PAYLOAD) {
+            return requestSampled.get() != Boolean.FALSE;
+        }
+        return true;
     }
 
     /**
      * Write a trace message to all registered handlers.
-     * 
+     *
      * @param message The message to write.
      */
     public void traceMessage(String message) {
+        trace(Category.SERVER, Level.INFO, message);
+    }
+
+    /**
+     * Write a trace message if its category and level are enabled.
+     *
+     * @param category The category.
+     * @param level    The level.
+     * @param message  The message to write.
+     */
+    public void trace(Category category, Level level, String message) {
+        if (isEnabled(category, level)) {
+            write(message);
+        }
+    }
+
+    /**
+     * Write a trace message if its category and level are enabled. The message is
+     * only built in this case.
+     *
+     * @param category The category.
+     * @param level    The level.
+     * @param message  The supplier of the message.
+     */
+    public void trace(Category category, Level level, Supplier<String> message) {
+        if (isEnabled(category, level)) {
+            write(message.get());
+        }
+    }
+
+    /**
+     * Write a trace message if its category and level are enabled. The
+     * placeholder "{}" in the template is replaced with the argument.
+     *
+     * @param category The category.
+     * @param level    The level.
+     * @param template The template of the message.
+     * @param arg      The argument.
+     */
+    public void trace(Category category, Level level, String template, Object arg) {
+        if (isEnabled(category, level)) {
+            write(format(template, arg, null));
+        }
+    }
+
+    /**
+     * Write a trace message if its category and level are enabled. The
+     * placeholders "{}" in the template are replaced with the arguments.
+     *
+     * @param category The category.
+     * @param level    The level.
+     * @param template The template of the message.
+     * @param arg1     The first argument.
+     * @param arg2     The second argument.
+     */
+    public void trace(Category category, Level level, String template, Object arg1, Object arg2) {
+        if (isEnabled(category, level)) {
+            write(format(template, arg1, arg2));
+        }
+    }
+
+    /**
+     * Write a trace message if its category and level are enabled. The
+     * placeholder "{}" in the template is replaced with the argument.
+     *
+     * @param category The category.
+     * @param level    The level.
+     * @param template The template of the message.
+     * @param arg      The argument.
+     */
+    public void trace(Category category, Level level, String template, long arg) {
+        if (isEnabled(category, level)) {
+            write(format(template, String.valueOf(arg), null));
+        }
+    }
+
+    private void write(String message) {
         for (SAPServerTraceMsgHandler handler : traceHandlers) {
             handler.onTraceMSg(message);
         }
     }
+
+    private synchronized void updateEnabledMask() {
+        int mask = 0;
+        if (!traceHandlers.isEmpty()) {
+            for (Category category : categories) {
+                for (Level l : Level.values()) {
+                    if (l.compareTo(level) <= 0) {
+                        mask |= bit(category, l);
+                    }
+                }
+            }
+        }
+        enabledMask = mask;
+    }
+
+    private static int bit(Category category, Level level) {
+        return 1 << (category.ordinal() * LEVEL_COUNT + level.ordinal());
+    }
+
+    private static String format(String template, Object arg1, Object arg2) {
+        StringBuilder sb = new StringBuilder(template.length() + 32);
+        int start = 0;
+        int argIndex = 0;
+        int index;
+        while (argIndex < 2 && (index = template.indexOf(PLACEHOLDER, start)) >= 0) {
+            sb.append(template, start, index);
+            sb.append(argIndex == 0 ? arg1 : arg2);
+            start = index + PLACEHOLDER.length();
+            argIndex++;
+        }
+        sb.append(template, start, template.length());
+        return sb.toString();
+    }
+
 }
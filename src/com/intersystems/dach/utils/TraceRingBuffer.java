@@ -0,0 +1,93 @@
+package com.intersystems.dach.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free buffer for trace messages. Any number of threads may add
+ * messages, a single thread takes them. If the buffer is full, new messages
+ * are dropped and counted instead of blocking the caller.
+ */
+public class TraceRingBuffer {
+
+    private final int mask;
+    private final AtomicReferenceArray<String> messages;
+
+    // The sequence number of each slot tells whether it can be written or read
+    private final AtomicLongArray sequences;
+
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * Create a new buffer.
+     *
+     * @param capacity The minimum number of messages, rounded up to a power of
+     *                 two.
+     */
+    public TraceRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mask = size - 1;
+        messages = new AtomicReferenceArray<String>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Add a message. If the buffer is full, the message is dropped.
+     *
+     * @param message The message.
+     * @return true, if the message has been added.
+     */
+    public boolean offer(String message) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    messages.set(index, message);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                droppedCount.incrementAndGet();
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Take the oldest message. Must only be called by a single thread.
+     *
+     * @return The message or null if the buffer is empty.
+     */
+    public String poll() {
+        int index = (int) (head & mask);
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        String message = messages.get(index);
+        messages.set(index, null);
+        sequences.set(index, head + mask + 1);
+        head++;
+        return message;
+    }
+
+    /**
+     * @return The number of messages that have been dropped, because the buffer
+     *         was full.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+}